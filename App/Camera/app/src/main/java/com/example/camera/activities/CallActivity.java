@@ -3,7 +3,6 @@ package com.example.camera.activities;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.view.MotionEvent;
 import android.view.View;
@@ -12,28 +11,48 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import androidx.annotation.OptIn;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.camera.core.CameraSelector;
-import androidx.camera.core.ExperimentalGetImage;
 import androidx.camera.core.ImageProxy;
 import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.camera.R;
 import com.example.camera.adapters.CamerasAdapter;
 import com.example.camera.databinding.ActivityCallBinding;
 import com.example.camera.managers.PeerConnectionManager;
+import com.example.camera.classes.BitrateController;
 import com.example.camera.classes.Camera;
+import com.example.camera.classes.CodecController;
+import com.example.camera.classes.EncoderSettings;
+import com.example.camera.classes.FrameCodecs;
+import com.example.camera.classes.FrameDecodePool;
+import com.example.camera.classes.JpegFrameCodec;
+import com.example.camera.classes.ReceiveConstraints;
+import com.example.camera.classes.TileDeltaEncoder;
+import com.example.camera.classes.TileRenderer;
+import com.example.camera.classes.YuvFrameReader;
 import com.example.camera.managers.DatabaseManager;
-import com.example.camera.utils.ImageConversionUtils;
 import com.example.camera.classes.Room;
 import com.example.camera.classes.User;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 public class CallActivity extends AppCompatActivity {
     private static final String TAG = "CallActivity";
+    // tiles just off screen stay subscribed, so scrolling them in doesn't wait for a keyframe
+    private static final int PREFETCH_TILES = 2;
+    // below this a sender is moved to a smaller layer rather than asked to slow down further
+    private static final int MIN_FPS = 10;
+    // the decode budget drifts as the decoder warms up and the load changes, so it is handed out again now and then
+    private static final long CONSTRAINTS_INTERVAL_MS = 2000;
+    // camera frames don't arrive exactly on time, a layer a little early still goes out
+    private static final long FPS_SLACK_MS = 5;
     private final static String[] PERMS = {Manifest.permission.CAMERA, Manifest.permission.RECORD_AUDIO, Manifest.permission.INTERNET};
     private ActivityCallBinding _views;
     private Camera _localCam;
@@ -42,6 +61,32 @@ public class CallActivity extends AppCompatActivity {
     private boolean _isMuted;
 
     private CamerasAdapter _camerasAdapter;
+    private volatile EncoderSettings _encoderSettings = EncoderSettings.forBitrate(BitrateController.START_BITRATE);
+    private long _lastFrameSentAt;
+    // when each simulcast layer last went out, for the frame rate its receivers asked for
+    private final long[] _layerSentAt = new long[EncoderSettings.LAYER_COUNT];
+    // one per simulcast layer on the camera thread
+    private final TileDeltaEncoder[] _encoders = new TileDeltaEncoder[EncoderSettings.LAYER_COUNT];
+    // decoded frames go from the decode workers straight to the render thread
+    private final FrameDecodePool _decodePool = new FrameDecodePool((username, frame) -> _renderer.submit(username, frame),
+            (username, frameId) -> PeerConnectionManager.getInstance().requestKeyframe(username, frameId));
+    private TileRenderer _renderer;
+    // camera thread only, every buffer in them is reused from frame to frame
+    private final YuvFrameReader _frameReader = new YuvFrameReader();
+    private final JpegFrameCodec _plainCodec = new JpegFrameCodec();
+    private final ByteArrayOutputStream _plainFrame = new ByteArrayOutputStream();
+    private final CodecController _codecController = new CodecController();
+    private int _lastCodecId = FrameCodecs.CODEC_PLAIN;
+    // ui thread only, what the receive constraints are worked out from
+    private final HashMap<String, int[]> _tileSizes = new HashMap<>();
+    private HashSet<String> _visibleParticipants;
+    private final Runnable _constraintsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateReceiveConstraints();
+            _views.camerasGrid.postDelayed(this, CONSTRAINTS_INTERVAL_MS);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -60,7 +105,12 @@ public class CallActivity extends AppCompatActivity {
         // lock orientation
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 
-        _camerasAdapter = new CamerasAdapter();
+        for (int layer = 0; layer < _encoders.length; layer++) {
+            _encoders[layer] = new TileDeltaEncoder();
+        }
+
+        _renderer = new TileRenderer(_decodePool::recycle, this::onTileResized);
+        _camerasAdapter = new CamerasAdapter(_renderer);
         _views.camerasGrid.setLayoutManager(new GridLayoutManager(this, 2)); // 2 columns grid
         _views.camerasGrid.setAdapter(_camerasAdapter);
 
@@ -71,6 +121,15 @@ public class CallActivity extends AppCompatActivity {
         _isCamClosed = true;
 
         _views.camerasGrid.setLayoutManager(new GridLayoutManager(this, 2));
+        // also called after every layout, so it covers participants joining and leaving too
+        _views.camerasGrid.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                updateVisibleParticipants();
+            }
+        });
+
+        _views.camerasGrid.postDelayed(_constraintsUpdater, CONSTRAINTS_INTERVAL_MS);
 
         DatabaseManager.getInstance().setOnRoomDataChange(Room.getConnectedRoom().getId(), room -> {
             if (room == null) {
@@ -79,17 +138,26 @@ public class CallActivity extends AppCompatActivity {
                 return;
             }
 
+            // newcomers get a decoder and a tile before the transport can hand us their first frame
+            ArrayList<String> otherParticipants = new ArrayList<>();
+            for (String username : room.getParticipants().keySet()) {
+                if (!username.equals(User.getConnectedUser().getUsername())) {
+                    otherParticipants.add(username);
+                    _decodePool.add(username);
+                    _renderer.add(username);
+                }
+            }
+
             Room.connectToRoom(room);
 
-            if (Room.getConnectedRoom() != null) {
-                HashMap<String, Bitmap> otherParticipantsCameras = new HashMap<>();
-                for (String username : Room.getConnectedRoom().getParticipants().keySet()) {
-                    if (!username.equals(User.getConnectedUser().getUsername()))
-                        otherParticipantsCameras.put(username, Bitmap.createBitmap(300, 300, Bitmap.Config.ALPHA_8));
+            // only the ones who left lose their tile, decoder and bitmaps
+            for (int position = 0; position < _camerasAdapter.getItemCount(); position++) {
+                String username = _camerasAdapter.getUsername(position);
+                if (!otherParticipants.contains(username)) {
+                    onParticipantLeft(username);
                 }
-
-                _camerasAdapter.setParticipants(otherParticipantsCameras);
             }
+            _camerasAdapter.setParticipants(otherParticipants);
         });
 
         _views.micButton.setOnClickListener(view -> {
@@ -104,14 +172,13 @@ public class CallActivity extends AppCompatActivity {
 
         _views.leaveButton.setOnClickListener(view -> leaveCall());
 
-        PeerConnectionManager.getInstance().setOnCompleteDataReceived(data -> {
-            runOnUiThread(() -> {
-                _camerasAdapter.updateParticipantFrame(
-                        data.getUsername(),
-                        ImageConversionUtils.byteArrayToBitmap(data.getPayload())
-                );
-            });
-        });
+        PeerConnectionManager.getInstance().setOnCompleteDataReceived(_decodePool::submit);
+
+        PeerConnectionManager.getInstance().setOnTargetBitrateChanged(bitrate ->
+                _encoderSettings = EncoderSettings.forBitrate(bitrate));
+
+        // only the layer the peer is on starts over, the others keep their deltas
+        PeerConnectionManager.getInstance().setOnKeyframeRequested(layer -> _encoders[layer].requestKeyframe());
 
         _views.localCameraFrame.setOnTouchListener(new View.OnTouchListener() {
             private float dX, dY;
@@ -139,10 +206,183 @@ public class CallActivity extends AppCompatActivity {
         });
     }
 
-    @OptIn(markerClass = ExperimentalGetImage.class)
     private void onLocalCamFrameReceive(ImageProxy frame) {
-        byte[] frameData = ImageConversionUtils.bitmapToByteArray(ImageConversionUtils.imageToBitmap(frame.getImage()));
-        PeerConnectionManager.getInstance().setDataSupplier(() -> frameData);
+        EncoderSettings settings = _encoderSettings;
+        long now = System.currentTimeMillis();
+        if (now - _lastFrameSentAt < settings.getFrameIntervalMs()) {
+            return;
+        }
+        _lastFrameSentAt = now;
+
+        // only the simulcast layers some peer is actually being sent are encoded, as delta frames for the peers
+        // that decode them and as plain jpeg for the ones that don't
+        int wantedLayers = PeerConnectionManager.getInstance().getWantedLayers();
+        int plainLayers = PeerConnectionManager.getInstance().getPlainLayers();
+        if ((wantedLayers | plainLayers) == 0) {
+            return;
+        }
+
+        // a layer goes out no faster than the fastest of its receivers can use. one that is skipped keeps
+        // its reference, the next delta frame just covers more change
+        int dueLayers = 0;
+        int plainDueLayers = 0;
+        for (int layer = 0; layer < EncoderSettings.LAYER_COUNT; layer++) {
+            if ((wantedLayers & (1 << layer)) == 0) {
+                // whoever picks this layer up later has no reference for it yet
+                _encoders[layer].requestKeyframe();
+                if ((plainLayers & (1 << layer)) == 0) {
+                    continue;
+                }
+            }
+            int maxFps = PeerConnectionManager.getInstance().getLayerMaxFps(layer);
+            if (maxFps > 0 && now - _layerSentAt[layer] < 1000 / maxFps - FPS_SLACK_MS) {
+                continue;
+            }
+            if ((plainLayers & (1 << layer)) != 0) {
+                plainDueLayers |= 1 << layer;
+            }
+            if ((wantedLayers & (1 << layer)) == 0) {
+                continue;
+            }
+            // the last frame of the layer is still waiting to go out, a new one would replace it and leave the
+            // delta after it without its base. the change waits for the next frame instead, a keyframe doesn't
+            if (PeerConnectionManager.getInstance().hasUnsentFrame(layer) && !_encoders[layer].isKeyframeRequested()) {
+                continue;
+            }
+            dueLayers |= 1 << layer;
+        }
+        if ((dueLayers | plainDueLayers) == 0) {
+            return;
+        }
+
+        // a peer that can't decode the codec we'd like gets the fastest one it can, or plain jpeg
+        int codecId = _codecController.select(settings.getCodecId(), PeerConnectionManager.getInstance().getCommonCodecs());
+
+        // receivers drop their tile reference on a plain frame, so the tile stream starts over once, on the way back
+        if (codecId != FrameCodecs.CODEC_PLAIN && _lastCodecId == FrameCodecs.CODEC_PLAIN) {
+            for (TileDeltaEncoder encoder : _encoders) {
+                encoder.requestKeyframe();
+            }
+        }
+        _lastCodecId = codecId;
+
+        long encodeStart = System.nanoTime();
+        _frameReader.read(frame);
+        byte[][] layers = new byte[EncoderSettings.LAYER_COUNT][];
+        byte[][] plain = plainDueLayers != 0 ? new byte[EncoderSettings.LAYER_COUNT][] : null;
+        for (int layer = 0; layer < layers.length; layer++) {
+            boolean deltaDue = (dueLayers & (1 << layer)) != 0;
+            boolean plainDue = (plainDueLayers & (1 << layer)) != 0;
+            if (!deltaDue && !plainDue) {
+                continue;
+            }
+            _layerSentAt[layer] = now;
+
+            // a low bitrate shrinks the full layer too, the smaller layers are never bigger than it, and
+            // nothing is sent bigger than the largest tile it is drawn in
+            float scale = Math.min(settings.getScale(), EncoderSettings.getLayerScale(layer));
+            scale = Math.min(scale, getTileScale(layer));
+            int[] pixels = _frameReader.convert(layer, scale);
+            int width = _frameReader.getWidth(layer);
+            int height = _frameReader.getHeight(layer);
+
+            byte[] plainFrame = null;
+            if (plainDue || codecId == FrameCodecs.CODEC_PLAIN) {
+                _plainFrame.reset();
+                _plainCodec.encode(pixels, 0, width, width, height, settings.getQuality(), _plainFrame);
+                plainFrame = _plainFrame.toByteArray();
+            }
+            if (plainDue) {
+                plain[layer] = plainFrame;
+            }
+            if (deltaDue) {
+                layers[layer] = codecId == FrameCodecs.CODEC_PLAIN
+                        ? plainFrame
+                        : _encoders[layer].encode(pixels, width, height, codecId, settings.getQuality(), now);
+            }
+        }
+        _codecController.onEncoded((System.nanoTime() - encodeStart) / 1_000_000, settings.getFrameIntervalMs());
+        PeerConnectionManager.getInstance().publishFrame(layers, plain);
+    }
+
+    // the scale that fits the frame into the largest tile any receiver of the layer draws it in, 1 when one
+    // of them didn't say. the width is rounded up to whole delta tiles so a few pixels don't cost a tile
+    private float getTileScale(int layer) {
+        int maxWidth = PeerConnectionManager.getInstance().getLayerMaxWidth(layer);
+        int maxHeight = PeerConnectionManager.getInstance().getLayerMaxHeight(layer);
+        int sourceWidth = _frameReader.getSourceWidth();
+        int sourceHeight = _frameReader.getSourceHeight();
+        if (maxWidth <= 0 || maxHeight <= 0 || sourceWidth <= 0 || sourceHeight <= 0) {
+            return 1f;
+        }
+
+        int tile = TileDeltaEncoder.TILE_SIZE;
+        int width = (maxWidth + tile - 1) / tile * tile;
+        return Math.min(1f, Math.max((float) width / sourceWidth, (float) maxHeight / sourceHeight));
+    }
+
+    private void updateVisibleParticipants() {
+        GridLayoutManager layout = (GridLayoutManager) _views.camerasGrid.getLayoutManager();
+        int count = _camerasAdapter.getItemCount();
+        int first = layout.findFirstVisibleItemPosition();
+        int last = layout.findLastVisibleItemPosition();
+        // not laid out yet, everyone stays subscribed until it is
+        if (first == RecyclerView.NO_POSITION && count > 0) return;
+
+        HashSet<String> visible = new HashSet<>();
+        for (int position = Math.max(0, first - PREFETCH_TILES); position <= Math.min(count - 1, last + PREFETCH_TILES); position++) {
+            visible.add(_camerasAdapter.getUsername(position));
+        }
+        PeerConnectionManager.getInstance().setVisibleParticipants(visible);
+        if (!visible.equals(_visibleParticipants)) {
+            _visibleParticipants = visible;
+            updateReceiveConstraints();
+        }
+    }
+
+    private void onParticipantLeft(String username) {
+        _renderer.remove(username);
+        _decodePool.remove(username);
+        _tileSizes.remove(username);
+        if (_visibleParticipants != null) {
+            _visibleParticipants.remove(username);
+        }
+    }
+
+    // the renderer reports a tile's size whenever its surface changes, so is what we ask senders for
+    private void onTileResized(String username, int width, int height) {
+        _tileSizes.put(username, new int[]{width, height});
+        _decodePool.setTargetSize(username, width, height);
+        updateReceiveConstraints();
+    }
+
+    // asks every sender on screen for no more than its tile shows and its share of what we can decode. a
+    // share too small for MIN_FPS at the tile's layer gets a smaller layer, above that the frame rate gives way
+    private void updateReceiveConstraints() {
+        int senders = 0;
+        for (String username : _tileSizes.keySet()) {
+            if (_visibleParticipants == null || _visibleParticipants.contains(username)) {
+                senders++;
+            }
+        }
+        if (senders == 0) return;
+        long share = _decodePool.getDecodeBudget() / senders;
+
+        for (Map.Entry<String, int[]> entry : _tileSizes.entrySet()) {
+            String username = entry.getKey();
+            if (_visibleParticipants != null && !_visibleParticipants.contains(username)) continue;
+            int width = entry.getValue()[0];
+            int height = entry.getValue()[1];
+
+            int layer = EncoderSettings.layerForDecodeBudget(EncoderSettings.layerForWidth(width), share, MIN_FPS);
+            int fps = 0;
+            if (share > 0) {
+                long pixels = Math.max(1, Math.min(EncoderSettings.getLayerPixels(layer), (long) width * height));
+                fps = (int) Math.max(MIN_FPS, Math.min(EncoderSettings.MAX_FPS, share / pixels));
+            }
+            PeerConnectionManager.getInstance().setPreferredLayer(username, layer);
+            PeerConnectionManager.getInstance().setReceiveConstraints(username, new ReceiveConstraints(width, height, fps, share));
+        }
     }
 
     @Override
@@ -160,8 +400,11 @@ public class CallActivity extends AppCompatActivity {
     }
 
     private void leaveCall() {
+        _views.camerasGrid.removeCallbacks(_constraintsUpdater);
         PeerConnectionManager.getInstance().shutdown();
         _localCam.stopCamera();
+        _decodePool.shutdown();
+        _renderer.shutdown();
         DatabaseManager.getInstance().setOnRoomDataChange(Room.getConnectedRoom().getId(), room -> {});
         DatabaseManager.getInstance().removeUserFromRoom(User.getConnectedUser(), Room.getConnectedRoom(), success -> {});
         startActivity(new Intent(this, HomeActivity.class));
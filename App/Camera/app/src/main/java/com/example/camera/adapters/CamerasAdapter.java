@@ -1,8 +1,5 @@
 package com.example.camera.adapters;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
 import android.view.LayoutInflater;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -14,22 +11,40 @@ import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.camera.R;
+import com.example.camera.classes.TileRenderer;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 
+// only lays out a tile per participant, frames are drawn into the tiles by the renderer
 public class CamerasAdapter extends RecyclerView.Adapter<CamerasAdapter.CameraViewHolder> {
-    private final HashMap<String, Bitmap> _participants = new HashMap<>();
     private final ArrayList<String> _participantsUsernames = new ArrayList<>();
+    private final TileRenderer _renderer;
 
-    public void setParticipants(HashMap<String, Bitmap> participants) {
-        _participants.clear();
-        _participants.putAll(participants);
+    public CamerasAdapter(TileRenderer renderer) {
+        this._renderer = renderer;
+    }
+
+    // everyone who stays keeps their place and their bound surface, only tiles that joined or left change.
+    // newcomers go to the end so nobody's tile jumps around
+    public void setParticipants(List<String> usernames) {
+        for (int position = _participantsUsernames.size() - 1; position >= 0; position--) {
+            if (!usernames.contains(_participantsUsernames.get(position))) {
+                _participantsUsernames.remove(position);
+                notifyItemRemoved(position);
+            }
+        }
 
-        _participantsUsernames.clear();
-        _participantsUsernames.addAll(participants.keySet());
+        for (String username : usernames) {
+            if (!_participantsUsernames.contains(username)) {
+                _participantsUsernames.add(username);
+                notifyItemInserted(_participantsUsernames.size() - 1);
+            }
+        }
+    }
 
-        notifyDataSetChanged();
+    public String getUsername(int position) {
+        return _participantsUsernames.get(position);
     }
 
     @NonNull
@@ -42,35 +57,17 @@ public class CamerasAdapter extends RecyclerView.Adapter<CamerasAdapter.CameraVi
     @Override
     public void onBindViewHolder(@NonNull CameraViewHolder holder, int position) {
         String username = _participantsUsernames.get(position);
-        Bitmap frame = _participants.get(username);
-
-        if (frame != null && holder.surfaceHolder.getSurface().isValid()) {
-            Canvas canvas = holder.surfaceHolder.lockCanvas();
-            if (canvas != null) {
-                canvas.drawColor(Color.BLACK);
-                canvas.drawBitmap(frame, 0, 0, null);
-                holder.surfaceHolder.unlockCanvasAndPost(canvas);
-            }
-        }
 
         if (!holder.usernameTextView.getText().toString().equals(username)) {
             holder.usernameTextView.setText(username);
         }
-    }
-
-    public void updateParticipantFrame(String username, Bitmap newFrame) {
-        if (_participants.containsKey(username)) {
-            _participants.put(username, newFrame);
-            int position = _participantsUsernames.indexOf(username);
-            if (position != -1) {
-                notifyItemChanged(position);
-            }
-        }
+        // the renderer moves the surface over from whoever the holder showed before
+        _renderer.attach(username, holder.surfaceHolder);
     }
 
     @Override
     public int getItemCount() {
-        return _participants.size();
+        return _participantsUsernames.size();
     }
 
     public static class CameraViewHolder extends RecyclerView.ViewHolder {
@@ -0,0 +1,62 @@
+package com.example.camera.classes;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+
+// a fixed number of bitmaps handed out and given back, so showing frames allocates nothing once the
+// pool is full. a free bitmap too small for the size asked for is replaced, never added to
+public class BitmapPool {
+    private final int _capacity;
+    private final ArrayList<Bitmap> _free = new ArrayList<>();
+    // everything the pool created and hasn't thrown away, to tell its bitmaps apart from any others
+    private final ArrayList<Bitmap> _owned = new ArrayList<>();
+
+    public BitmapPool(int capacity) {
+        this._capacity = capacity;
+    }
+
+    // null when every bitmap is still out, the caller skips the frame
+    public synchronized Bitmap obtain(int width, int height) {
+        int bytes = width * height * 4;
+        for (int i = 0; i < _free.size(); i++) {
+            Bitmap bitmap = _free.get(i);
+            if (bitmap.getAllocationByteCount() >= bytes) {
+                _free.remove(i);
+                if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                    bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                }
+                return bitmap;
+            }
+        }
+
+        if (_owned.size() >= _capacity) {
+            if (_free.isEmpty()) {
+                return null;
+            }
+            // the tile grew, one of the small ones makes room
+            Bitmap small = _free.remove(_free.size() - 1);
+            _owned.remove(small);
+            small.recycle();
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        _owned.add(bitmap);
+        return bitmap;
+    }
+
+    // bitmaps the pool didn't create are ignored, so placeholders can be handed back like any frame
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap != null && _owned.contains(bitmap) && !_free.contains(bitmap)) {
+            _free.add(bitmap);
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : _free) {
+            _owned.remove(bitmap);
+            bitmap.recycle();
+        }
+        _free.clear();
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.camera.classes;
+
+public class BitrateController {
+    public static final int MIN_BITRATE = 150_000;
+    public static final int MAX_BITRATE = 8_000_000;
+    public static final int START_BITRATE = 1_000_000;
+
+    private static final float HIGH_LOSS = 0.10f;
+    private static final float LOW_LOSS = 0.02f;
+    private static final float OVERUSE_GRADIENT_MS = 1.0f;
+    private static final float DELAY_BACKOFF = 0.85f;
+    private static final float INCREASE_PER_SECOND = 0.08f;
+    private static final float MAX_OVER_RECEIVED = 1.5f;
+    private static final float RTT_WEIGHT = 0.125f;
+
+    private int _targetBitrate = START_BITRATE;
+    private int _rttMs = 100;
+    private long _lastUpdateAt = System.currentTimeMillis();
+    private long _lastDecreaseAt;
+
+    // delay growth backs off before the queue overflows, loss only matters once it is clearly not noise,
+    // and a clean link ramps up multiplicatively, no more often than once per round trip
+    public synchronized int onReport(float loss, float delayGradientMs, int receivedBitrate, long now) {
+        long elapsed = now - _lastUpdateAt;
+        _lastUpdateAt = now;
+
+        float target = _targetBitrate;
+        if (delayGradientMs > OVERUSE_GRADIENT_MS) {
+            float base = receivedBitrate > 0 ? Math.min(target, receivedBitrate) : target;
+            target = base * DELAY_BACKOFF;
+            _lastDecreaseAt = now;
+        } else if (loss > HIGH_LOSS) {
+            target *= 1f - 0.5f * loss;
+            _lastDecreaseAt = now;
+        } else if (loss < LOW_LOSS && now - _lastDecreaseAt > _rttMs) {
+            float increased = target * (1f + INCREASE_PER_SECOND * elapsed / 1000f);
+            target = Math.min(increased, Math.max(target, receivedBitrate * MAX_OVER_RECEIVED));
+        }
+
+        _targetBitrate = Math.max(MIN_BITRATE, Math.min(MAX_BITRATE, Math.round(target)));
+        return _targetBitrate;
+    }
+
+    public synchronized void onRtt(int rttMs) {
+        _rttMs = Math.round(_rttMs + (rttMs - _rttMs) * RTT_WEIGHT);
+    }
+
+    public synchronized int getTargetBitrate() {
+        return _targetBitrate;
+    }
+
+    public synchronized int getRttMs() {
+        return _rttMs;
+    }
+}
@@ -44,12 +44,14 @@ public class Camera {
             try {
                 _cameraProvider = cameraProviderFuture.get();
                 _cameraPreview = new Preview.Builder()
-                                     .setTargetResolution(new Size(1280, 720)).build();
+                                     .setTargetResolution(new Size(EncoderSettings.FULL_WIDTH, EncoderSettings.FULL_HEIGHT)).build();
                 _cameraPreview.setSurfaceProvider(_previewView.getSurfaceProvider());
 
                 _cameraProvider.unbindAll();
 
+                // the full simulcast layer, the smaller ones are scaled down from it
                 _frameReader = new ImageAnalysis.Builder()
+                        .setTargetResolution(new Size(EncoderSettings.FULL_WIDTH, EncoderSettings.FULL_HEIGHT))
                         .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
                         .setOutputImageFormat(ImageAnalysis.OUTPUT_IMAGE_FORMAT_YUV_420_888)
                         .build();
@@ -0,0 +1,55 @@
+package com.example.camera.classes;
+
+// picks the codec every frame is encoded with. the bitrate decides which codec we'd like, this caps it at
+// the slowest one the cpu keeps up with and the peers can all decode
+public class CodecController {
+    private static final float EMA_WEIGHT = 0.1f;
+    // encoding eats more than this share of the frame interval, the next faster codec takes over
+    private static final float SLOW_SHARE = 0.7f;
+    // and this far under for a while, a slower codec gets another try
+    private static final float FAST_SHARE = 0.3f;
+    private static final int FAST_FRAMES_TO_RELAX = 60;
+
+    private float _averageEncodeMs;
+    private int _fastFrames;
+    // the slowest speed tier allowed, lowered whenever the cpu falls behind
+    private int _maxSpeedTier = FrameCodecs.SPEED_ORDER.length - 1;
+
+    // called on the encoding thread after every frame, with the time all its layers took
+    public void onEncoded(long encodeMs, long frameIntervalMs) {
+        _averageEncodeMs = _averageEncodeMs == 0 ? encodeMs
+                : _averageEncodeMs + EMA_WEIGHT * (encodeMs - _averageEncodeMs);
+
+        if (_averageEncodeMs > frameIntervalMs * SLOW_SHARE) {
+            _fastFrames = 0;
+            if (_maxSpeedTier > 0) {
+                _maxSpeedTier--;
+                // the average still remembers the slow codec, start over so the faster one isn't stepped past
+                _averageEncodeMs = 0;
+            }
+        } else if (_averageEncodeMs < frameIntervalMs * FAST_SHARE) {
+            if (++_fastFrames >= FAST_FRAMES_TO_RELAX && _maxSpeedTier < FrameCodecs.SPEED_ORDER.length - 1) {
+                _maxSpeedTier++;
+                _fastFrames = 0;
+                _averageEncodeMs = 0;
+            }
+        } else {
+            _fastFrames = 0;
+        }
+    }
+
+    // the wanted codec or the next faster one every peer supports, plain jpeg when no codec is common
+    public int select(int wantedCodec, int commonCodecs) {
+        for (int tier = Math.min(FrameCodecs.speedTierOf(wantedCodec), _maxSpeedTier); tier >= 0; tier--) {
+            int codec = FrameCodecs.SPEED_ORDER[tier];
+            if ((commonCodecs & (1 << codec)) != 0) {
+                return codec;
+            }
+        }
+        return FrameCodecs.CODEC_PLAIN;
+    }
+
+    public float getAverageEncodeMs() {
+        return _averageEncodeMs;
+    }
+}
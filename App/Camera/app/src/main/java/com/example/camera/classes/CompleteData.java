@@ -2,24 +2,53 @@ package com.example.camera.classes;
 
 public class CompleteData {
     private String _username;
+    private long _frameId;
     private long _timestamp;
     private byte[] _payload;
+    private int _length;
+    private FrameAssembler _assembler;
 
     public CompleteData(String username, long timestamp, byte[] payload) {
+        this(username, 0, timestamp, payload, payload.length, null);
+    }
+
+    public CompleteData(String username, long frameId, long timestamp, byte[] payload, int length, FrameAssembler assembler) {
         _username = username;
+        _frameId = frameId;
         _timestamp = timestamp;
         _payload = payload;
+        _length = length;
+        _assembler = assembler;
     }
 
     public String getUsername() {
         return _username;
     }
 
+    // the sender's frame sequence, frames from one sender are shown in this order
+    public long getFrameId() {
+        return _frameId;
+    }
+
     public long getTimestamp() {
         return _timestamp;
     }
 
+    // the payload can be larger than the frame, only the first getLength() bytes are valid
     public byte[] getPayload() {
         return _payload;
     }
+
+    public int getLength() {
+        return _length;
+    }
+
+    // hands the payload back for reuse, it must not be read after this
+    public void release() {
+        if (_assembler != null && _payload != null) {
+            _assembler.recycle(_payload);
+        }
+        _payload = null;
+        _assembler = null;
+    }
 }
@@ -1,14 +1,43 @@
 package com.example.camera.classes;
 
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
 public class Connection {
     private String _username;
+    private long _usernameKey;
     private String _userIp;
-    private Thread _sendThread;
+    private InetSocketAddress _address;
+    private DatagramChannel _channel;
+    private FrameAssembler _frameAssembler;
+    private final JitterBuffer _jitterBuffer = new JitterBuffer();
+    private volatile int _wireVersion = WireFormat.VERSION_LEGACY;
+    private volatile int _remoteSenderId;
+    private int _helloAttempts;
+    private long _lastHelloAt;
+    private final BitrateController _bitrateController = new BitrateController();
+    private volatile float _lossRate;
+    private volatile int _datagramTier;
+    private int _probeAttempts;
+    // the layer the peer asked us for, and the one we ask it for
+    private volatile int _subscribedLayer;
+    private volatile int _preferredLayer;
+    private volatile int _sentLayer;
+    // whether the peer is showing us, and whether we are showing it. both hold until a subscribe says otherwise
+    private volatile boolean _viewingUs = true;
+    private volatile boolean _visible = true;
+    // what the peer can use of our video, and what we can use of its
+    private volatile ReceiveConstraints _subscribedConstraints = ReceiveConstraints.NONE;
+    private volatile ReceiveConstraints _preferredConstraints = ReceiveConstraints.NONE;
+    private final long[] _lastSentFrameIds = new long[EncoderSettings.LAYER_COUNT];
+    private volatile long _lastKeyframeRequestAt;
+    // a bit per FrameCodecs id the peer can decode, 0 until its hello says otherwise
+    private volatile int _remoteCodecs;
 
-    public Connection(String username, String userIp, Thread sendThread) {
+    public Connection(String username, String userIp) {
         this._username = username;
+        this._usernameKey = WireFormat.packUsername(username);
         this._userIp = userIp;
-        this._sendThread = sendThread;
     }
 
     public String getUsername() {
@@ -17,6 +46,11 @@ public class Connection {
 
     public void setUsername(String username) {
         this._username = username;
+        this._usernameKey = WireFormat.packUsername(username);
+    }
+
+    public long getUsernameKey() {
+        return _usernameKey;
     }
 
     public String getUserIp() {
@@ -27,11 +61,175 @@ public class Connection {
         this._userIp = userIp;
     }
 
-    public Thread getSendThread() {
-        return _sendThread;
+    public FrameAssembler getFrameAssembler() {
+        return _frameAssembler;
+    }
+
+    public void setFrameAssembler(FrameAssembler frameAssembler) {
+        this._frameAssembler = frameAssembler;
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return _jitterBuffer;
+    }
+
+    public int getWireVersion() {
+        return _wireVersion;
+    }
+
+    public void setWireVersion(int wireVersion) {
+        this._wireVersion = wireVersion;
+    }
+
+    public int getRemoteSenderId() {
+        return _remoteSenderId;
+    }
+
+    public void setRemoteSenderId(int remoteSenderId) {
+        this._remoteSenderId = remoteSenderId;
+    }
+
+    public int getHelloAttempts() {
+        return _helloAttempts;
+    }
+
+    public void setHelloAttempts(int helloAttempts) {
+        this._helloAttempts = helloAttempts;
+    }
+
+    public long getLastHelloAt() {
+        return _lastHelloAt;
+    }
+
+    public void setLastHelloAt(long lastHelloAt) {
+        this._lastHelloAt = lastHelloAt;
+    }
+
+    // resolved once and reused for every packet until the ip changes
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    public void setAddress(InetSocketAddress address) {
+        this._address = address;
+    }
+
+    public DatagramChannel getChannel() {
+        return _channel;
+    }
+
+    public void setChannel(DatagramChannel channel) {
+        this._channel = channel;
+    }
+
+    public BitrateController getBitrateController() {
+        return _bitrateController;
+    }
+
+    // index into the datagram sizes this peer's path is known to carry
+    public int getDatagramTier() {
+        return _datagramTier;
+    }
+
+    public void setDatagramTier(int datagramTier) {
+        this._datagramTier = datagramTier;
+    }
+
+    public int getProbeAttempts() {
+        return _probeAttempts;
+    }
+
+    public void setProbeAttempts(int probeAttempts) {
+        this._probeAttempts = probeAttempts;
+    }
+
+    public int getSubscribedLayer() {
+        return _subscribedLayer;
+    }
+
+    public void setSubscribedLayer(int subscribedLayer) {
+        this._subscribedLayer = subscribedLayer;
+    }
+
+    public boolean isViewingUs() {
+        return _viewingUs;
+    }
+
+    public void setViewingUs(boolean viewingUs) {
+        this._viewingUs = viewingUs;
+    }
+
+    public boolean isVisible() {
+        return _visible;
+    }
+
+    public void setVisible(boolean visible) {
+        this._visible = visible;
+    }
+
+    public ReceiveConstraints getSubscribedConstraints() {
+        return _subscribedConstraints;
+    }
+
+    public void setSubscribedConstraints(ReceiveConstraints subscribedConstraints) {
+        this._subscribedConstraints = subscribedConstraints;
+    }
+
+    public ReceiveConstraints getPreferredConstraints() {
+        return _preferredConstraints;
+    }
+
+    public void setPreferredConstraints(ReceiveConstraints preferredConstraints) {
+        this._preferredConstraints = preferredConstraints;
+    }
+
+    public int getPreferredLayer() {
+        return _preferredLayer;
+    }
+
+    public void setPreferredLayer(int preferredLayer) {
+        this._preferredLayer = preferredLayer;
+    }
+
+    // the layer this peer was last sent, which may be smaller than the one it subscribed to
+    public int getSentLayer() {
+        return _sentLayer;
+    }
+
+    public void setSentLayer(int sentLayer) {
+        this._sentLayer = sentLayer;
+    }
+
+    // so a frame that is already on its way isn't sent again when another layer is published
+    public long getLastSentFrameId(int layer) {
+        return _lastSentFrameIds[layer];
+    }
+
+    public void setLastSentFrameId(int layer, long frameId) {
+        _lastSentFrameIds[layer] = frameId;
+    }
+
+    public long getLastKeyframeRequestAt() {
+        return _lastKeyframeRequestAt;
+    }
+
+    public void setLastKeyframeRequestAt(long lastKeyframeRequestAt) {
+        this._lastKeyframeRequestAt = lastKeyframeRequestAt;
+    }
+
+    public float getLossRate() {
+        return _lossRate;
+    }
+
+    public void setLossRate(float lossRate) {
+        this._lossRate = lossRate;
+    }
+
+    public int getRemoteCodecs() {
+        return _remoteCodecs;
     }
 
-    public void setSendThread(Thread sendThread) {
-        this._sendThread = sendThread;
+    public void setRemoteCodecs(int remoteCodecs) {
+        this._remoteCodecs = remoteCodecs;
     }
 }
@@ -1,22 +1,168 @@
 package com.example.camera.classes;
 
+import com.example.camera.utils.ChecksumUtils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
 public class DataPacket {
-    private String _username;
+    private final ByteBuffer _buffer;
+    private Connection _sender;
+    private int _version;
+    private int _streamId;
+    private int _controlType;
+    private int _senderId;
+    private long _usernameKey;
+    private long _frameId;
     private long _timestamp;
     private int _sequenceNumber;
     private int _totalPackets;
-    private byte[] _payload;
+    private int _fragmentSize;
+    private int _parityCount;
+    private int _frameLength;
+    private boolean _retransmit;
+    private int _helloVersion;
+    private int _helloFlags;
+    private int _helloCodecs;
+
+    public DataPacket(int capacity) {
+        _buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    public ByteBuffer getBuffer() {
+        return _buffer;
+    }
+
+    // parses the header straight out of the received buffer and leaves it positioned at the payload
+    public boolean readHeader() {
+        _sender = null;
+        _controlType = 0;
+        _parityCount = 0;
+        _retransmit = false;
+        _senderId = 0;
+        _usernameKey = 0;
+
+        try {
+            int first = _buffer.get(_buffer.position()) & 0xFF;
+            if ((first & ~WireFormat.VERSION_MASK) == WireFormat.VERSION_MARKER) {
+                return readCompactHeader(first & WireFormat.VERSION_MASK);
+            }
+            return readLegacyHeader();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    private boolean readLegacyHeader() {
+        if (_buffer.remaining() < WireFormat.LEGACY_HEADER_SIZE) {
+            return false;
+        }
+
+        _version = WireFormat.VERSION_LEGACY;
+        _streamId = WireFormat.STREAM_VIDEO;
+        _usernameKey = _buffer.getLong();
+        _timestamp = _buffer.getLong();
+        _frameId = _timestamp;
+        _sequenceNumber = _buffer.getInt();
+        _totalPackets = _buffer.getInt();
+        _fragmentSize = WireFormat.LEGACY_FRAGMENT_SIZE;
+
+        return isValidFragment();
+    }
+
+    private boolean readCompactHeader(int version) {
+        if (version < WireFormat.VERSION_COMPACT || version > WireFormat.CURRENT_VERSION) {
+            return false;
+        }
+
+        int start = _buffer.position();
+        _buffer.get();
+        int flags = _buffer.get() & 0xFF;
+
+        if ((flags & WireFormat.FLAG_CHECKSUM) != 0) {
+            int end = _buffer.limit() - WireFormat.CHECKSUM_SIZE;
+            if (end <= _buffer.position() || ChecksumUtils.crc32c(_buffer, start, end) != _buffer.getInt(end)) {
+                return false;
+            }
+            _buffer.limit(end);
+        }
+
+        _version = version;
+        _streamId = (flags >>> WireFormat.STREAM_SHIFT) & WireFormat.STREAM_MASK;
+        _senderId = (int) WireFormat.getVarLong(_buffer);
+        if (_senderId <= 0 || _senderId > WireFormat.MAX_SENDER_ID) {
+            return false;
+        }
+
+        if ((flags & WireFormat.FLAG_CONTROL) != 0) {
+            _controlType = _buffer.get() & 0xFF;
+            if (_controlType == WireFormat.CONTROL_HELLO) {
+                _helloVersion = _buffer.get() & 0xFF;
+                _helloFlags = _buffer.get() & 0xFF;
+                _usernameKey = _buffer.getLong();
+                // missing from peers that only understand plain jpeg frames
+                _helloCodecs = _buffer.hasRemaining() ? _buffer.get() & 0xFF : 0;
+            }
+            return _controlType != 0;
+        }
+
+        _retransmit = (flags & WireFormat.FLAG_RETRANSMIT) != 0;
+        _frameId = WireFormat.getVarLong(_buffer);
+        _timestamp = WireFormat.getVarLong(_buffer);
+        _sequenceNumber = (int) WireFormat.getVarLong(_buffer);
+        _totalPackets = (int) WireFormat.getVarLong(_buffer);
+        _fragmentSize = (int) WireFormat.getVarLong(_buffer);
+        if ((flags & WireFormat.FLAG_PARITY) != 0) {
+            _parityCount = (int) WireFormat.getVarLong(_buffer);
+            _frameLength = (int) WireFormat.getVarLong(_buffer);
+            if (_parityCount <= 0 || _parityCount > _totalPackets || _frameLength <= 0) {
+                return false;
+            }
+        }
+
+        return _frameId >= 0 && _fragmentSize > 0 && _buffer.remaining() <= _fragmentSize && isValidFragment();
+    }
+
+    // parity fragments are numbered after the data fragments
+    private boolean isValidFragment() {
+        return _totalPackets > 0 && _sequenceNumber >= 0 && _sequenceNumber < _totalPackets + _parityCount;
+    }
+
+    public Connection getSender() {
+        return _sender;
+    }
+
+    public void setSender(Connection sender) {
+        _sender = sender;
+    }
 
-    public DataPacket(String username, long timestamp, int sequenceNumber, int totalPackets, byte[] payload) {
-        _username = username;
-        _timestamp = timestamp;
-        _sequenceNumber = sequenceNumber;
-        _totalPackets = totalPackets;
-        _payload = payload;
+    public int getVersion() {
+        return _version;
     }
 
-    public String getUsername() {
-        return _username;
+    public int getStreamId() {
+        return _streamId;
+    }
+
+    public boolean isControl() {
+        return _controlType != 0;
+    }
+
+    public int getControlType() {
+        return _controlType;
+    }
+
+    public int getSenderId() {
+        return _senderId;
+    }
+
+    public long getUsernameKey() {
+        return _usernameKey;
+    }
+
+    // the timestamp for legacy packets, the sender's frame sequence for compact ones
+    public long getFrameId() {
+        return _frameId;
     }
 
     public long getTimestamp() {
@@ -29,9 +175,45 @@ public class DataPacket {
 
     public int getTotalPackets() { return _totalPackets; }
 
-    public byte[] getPayload() {
-        return _payload;
+    public int getFragmentSize() {
+        return _fragmentSize;
+    }
+
+    public boolean isParity() {
+        return _parityCount > 0;
+    }
+
+    // resent after a nack, legacy packets never are
+    public boolean isRetransmit() {
+        return _retransmit;
+    }
+
+    public int getParityCount() {
+        return _parityCount;
     }
 
+    // only carried by parity fragments
+    public int getFrameLength() {
+        return _frameLength;
+    }
 
+    public int getHelloVersion() {
+        return _helloVersion;
+    }
+
+    public int getHelloFlags() {
+        return _helloFlags;
+    }
+
+    public int getHelloCodecs() {
+        return _helloCodecs;
+    }
+
+    public int getPayloadLength() {
+        return _buffer.remaining();
+    }
+
+    public void copyPayload(byte[] destination, int offset) {
+        _buffer.get(destination, offset, _buffer.remaining());
+    }
 }
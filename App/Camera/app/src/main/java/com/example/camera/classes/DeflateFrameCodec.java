@@ -0,0 +1,152 @@
+package com.example.camera.classes;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// pure java, so it runs the same on a plain jvm. every channel is predicted from its left, upper and
+// upper left neighbours the way jpeg-ls does it, and the small residuals that leave deflate well.
+// the lossy tier first drops low bits by quality, the lossless tier keeps every bit
+public class DeflateFrameCodec implements FrameCodec {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final int _id;
+    private final boolean _lossless;
+    private final Deflater _deflater;
+    private final Inflater _inflater = new Inflater();
+    private final byte[] _chunk = new byte[CHUNK_SIZE];
+    // one plane per channel, planes deflate better than interleaved pixels
+    private byte[] _planes = new byte[0];
+
+    public DeflateFrameCodec(int id, boolean lossless) {
+        this._id = id;
+        this._lossless = lossless;
+        this._deflater = new Deflater(lossless ? Deflater.DEFAULT_COMPRESSION : Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public int getId() {
+        return _id;
+    }
+
+    @Override
+    public void encode(int[] pixels, int offset, int stride, int width, int height, int quality, ByteArrayOutputStream out) {
+        int shift = _lossless ? 0 : shiftFor(quality);
+        int planeSize = width * height;
+        ensureCapacity(planeSize * 3);
+
+        for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            int index = y * width;
+            for (int x = 0; x < width; x++, index++) {
+                int pixel = pixels[row + x];
+                _planes[index] = (byte) (((pixel >> 16) & 0xFF) >> shift);
+                _planes[planeSize + index] = (byte) (((pixel >> 8) & 0xFF) >> shift);
+                _planes[2 * planeSize + index] = (byte) ((pixel & 0xFF) >> shift);
+            }
+        }
+
+        // back to front, so the neighbours a residual is taken against still hold their values
+        for (int start = 2 * planeSize; start >= 0; start -= planeSize) {
+            for (int y = height - 1; y >= 0; y--) {
+                for (int x = width - 1; x >= 0; x--) {
+                    int i = start + y * width + x;
+                    _planes[i] = (byte) ((_planes[i] & 0xFF) - predict(_planes, i, x, y, width));
+                }
+            }
+        }
+
+        out.write(shift);
+        _deflater.reset();
+        _deflater.setInput(_planes, 0, planeSize * 3);
+        _deflater.finish();
+        while (!_deflater.finished()) {
+            int count = _deflater.deflate(_chunk);
+            out.write(_chunk, 0, count);
+        }
+    }
+
+    @Override
+    public boolean decode(byte[] data, int offset, int length, int[] pixels, int pixelOffset, int stride, int width, int height) {
+        if (length < 1) {
+            return false;
+        }
+        int shift = data[offset];
+        if (shift < 0 || shift > 7) {
+            return false;
+        }
+
+        int planeSize = width * height;
+        ensureCapacity(planeSize * 3);
+        try {
+            _inflater.reset();
+            _inflater.setInput(data, offset + 1, length - 1);
+            int inflated = 0;
+            while (inflated < planeSize * 3 && !_inflater.finished()) {
+                int count = _inflater.inflate(_planes, inflated, planeSize * 3 - inflated);
+                if (count == 0 && (_inflater.needsInput() || _inflater.needsDictionary())) break;
+                inflated += count;
+            }
+            if (inflated != planeSize * 3) {
+                return false;
+            }
+        } catch (DataFormatException e) {
+            return false;
+        }
+
+        // front to back this time, every prediction uses values already rebuilt
+        for (int start = 0; start < 3 * planeSize; start += planeSize) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = start + y * width + x;
+                    _planes[i] = (byte) (_planes[i] + predict(_planes, i, x, y, width));
+                }
+            }
+        }
+
+        int round = shift > 0 ? 1 << (shift - 1) : 0;
+        for (int y = 0; y < height; y++) {
+            int row = pixelOffset + y * stride;
+            int index = y * width;
+            for (int x = 0; x < width; x++, index++) {
+                int r = ((_planes[index] & 0xFF) << shift) | round;
+                int g = ((_planes[planeSize + index] & 0xFF) << shift) | round;
+                int b = ((_planes[2 * planeSize + index] & 0xFF) << shift) | round;
+                pixels[row + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return true;
+    }
+
+    // the median edge detector: the left or upper neighbour across an edge, their gradient inside a smooth area
+    private static int predict(byte[] planes, int i, int x, int y, int width) {
+        if (y == 0) {
+            return x > 0 ? planes[i - 1] & 0xFF : 0;
+        }
+        int up = planes[i - width] & 0xFF;
+        if (x == 0) {
+            return up;
+        }
+
+        int left = planes[i - 1] & 0xFF;
+        int upLeft = planes[i - width - 1] & 0xFF;
+        if (upLeft >= Math.max(left, up)) return Math.min(left, up);
+        if (upLeft <= Math.min(left, up)) return Math.max(left, up);
+        return left + up - upLeft;
+    }
+
+    // bits dropped per channel, even the lowest quality keeps 16 levels
+    private static int shiftFor(int quality) {
+        if (quality >= 85) return 1;
+        if (quality >= 65) return 2;
+        if (quality >= 45) return 3;
+        return 4;
+    }
+
+    private void ensureCapacity(int size) {
+        if (_planes.length < size) {
+            _planes = new byte[size];
+        }
+    }
+}
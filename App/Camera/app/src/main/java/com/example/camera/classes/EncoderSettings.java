@@ -0,0 +1,97 @@
+package com.example.camera.classes;
+
+public class EncoderSettings {
+    // simulcast layers, each half the width and height of the one before.
+    // layer 0 is the full frame, and the only one a sender without layers sends
+    public static final int LAYER_COUNT = 3;
+    public static final int FULL_WIDTH = 1280;
+    public static final int FULL_HEIGHT = 720;
+    public static final int MAX_FPS = 30;
+    private static final float[] LAYER_SCALES = {1f, 0.5f, 0.25f};
+    // a peer whose link can't take a layer is sent the next smaller one, whatever it subscribed to
+    private static final int[] LAYER_MIN_BITRATES = {800_000, 300_000, 0};
+
+    private final float _scale;
+    private final int _quality;
+    private final int _maxFps;
+    private final int _codecId;
+
+    public EncoderSettings(float scale, int quality, int maxFps, int codecId) {
+        this._scale = scale;
+        this._quality = quality;
+        this._maxFps = maxFps;
+        this._codecId = codecId;
+    }
+
+    // lower targets give up quality first, then resolution and frame rate.
+    // only a link near the top of the range can carry the pure java codecs, they keep far more detail than jpeg
+    public static EncoderSettings forBitrate(int bitrate) {
+        if (bitrate >= 7_500_000) return new EncoderSettings(1f, 85, MAX_FPS, FrameCodecs.CODEC_LOSSLESS);
+        if (bitrate >= 5_000_000) return new EncoderSettings(1f, 85, MAX_FPS, FrameCodecs.CODEC_DEFLATE);
+        if (bitrate >= 3_000_000) return new EncoderSettings(1f, 85, MAX_FPS, FrameCodecs.CODEC_JPEG);
+        if (bitrate >= 1_500_000) return new EncoderSettings(1f, 70, 24, FrameCodecs.CODEC_JPEG);
+        if (bitrate >= 800_000) return new EncoderSettings(0.75f, 60, 20, FrameCodecs.CODEC_JPEG);
+        if (bitrate >= 400_000) return new EncoderSettings(0.5f, 50, 15, FrameCodecs.CODEC_JPEG);
+        return new EncoderSettings(0.35f, 40, 10, FrameCodecs.CODEC_JPEG);
+    }
+
+    public static float getLayerScale(int layer) {
+        return LAYER_SCALES[layer];
+    }
+
+    // roughly how much of the full layer's bitrate a layer takes, it scales with the pixel count
+    public static float getLayerShare(int layer) {
+        return LAYER_SCALES[layer] * LAYER_SCALES[layer];
+    }
+
+    public static int layerForBitrate(int bitrate) {
+        int layer = 0;
+        while (layer < LAYER_COUNT - 1 && bitrate < LAYER_MIN_BITRATES[layer]) {
+            layer++;
+        }
+        return layer;
+    }
+
+    public static long getLayerPixels(int layer) {
+        return (long) Math.round(FULL_WIDTH * LAYER_SCALES[layer]) * Math.round(FULL_HEIGHT * LAYER_SCALES[layer]);
+    }
+
+    // the given layer, or a smaller one if a decoder with this many pixels a second couldn't keep up with it
+    // at minFps. a budget of 0 is unknown and changes nothing
+    public static int layerForDecodeBudget(int layer, long pixelsPerSecond, int minFps) {
+        if (pixelsPerSecond <= 0) return layer;
+        while (layer < LAYER_COUNT - 1 && getLayerPixels(layer) * minFps > pixelsPerSecond) {
+            layer++;
+        }
+        return layer;
+    }
+
+    // the smallest layer that is still at least as wide as the tile it is drawn in
+    public static int layerForWidth(int width) {
+        int layer = LAYER_COUNT - 1;
+        while (layer > 0 && FULL_WIDTH * LAYER_SCALES[layer] < width) {
+            layer--;
+        }
+        return layer;
+    }
+
+    public float getScale() {
+        return _scale;
+    }
+
+    public int getQuality() {
+        return _quality;
+    }
+
+    public int getMaxFps() {
+        return _maxFps;
+    }
+
+    public int getCodecId() {
+        return _codecId;
+    }
+
+    public long getFrameIntervalMs() {
+        return 1000 / _maxFps;
+    }
+}
@@ -0,0 +1,373 @@
+package com.example.camera.classes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class FrameAssembler {
+    private static final int MAX_IN_FLIGHT_FRAMES = 4;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_NACKS_PER_FRAME = 3;
+    private static final int MAX_NACK_RANGES = 32;
+
+    private final String _username;
+    private final FrameSlot[] _slots = new FrameSlot[MAX_IN_FLIGHT_FRAMES];
+    private final ArrayBlockingQueue<byte[]> _freeBuffers = new ArrayBlockingQueue<>(MAX_IN_FLIGHT_FRAMES + JitterBuffer.MAX_FRAMES + 1);
+    private final ReceiveStatistics _statistics = new ReceiveStatistics();
+    private long _lastCompletedFrameId = Long.MIN_VALUE;
+
+    public FrameAssembler(String username) {
+        _username = username;
+        for (int i = 0; i < _slots.length; i++) {
+            _slots[i] = new FrameSlot();
+        }
+    }
+
+    // copies the fragment straight to its offset in the frame buffer, returns the frame once every fragment is in
+    public synchronized CompleteData insert(DataPacket packet) {
+        long frameId = packet.getFrameId();
+        if (frameId <= _lastCompletedFrameId) {
+            return null;
+        }
+
+        FrameSlot slot = findSlot(frameId, packet.getTotalPackets(), packet.getFragmentSize());
+        if (slot == null) {
+            return null;
+        }
+
+        int group = packet.isParity() ? insertParity(slot, packet) : insertData(slot, packet);
+        if (group < 0) {
+            return null;
+        }
+        slot.lastArrivalAt = System.currentTimeMillis();
+        if (!packet.isRetransmit()) {
+            slot.firstPass++;
+        }
+        if (packet.isParity()) {
+            slot.parityArrived++;
+        }
+        _statistics.onBytesReceived(packet.getPayloadLength());
+
+        if (slot.parityCount > 0 && slot.received < slot.total) {
+            recover(slot, group);
+        }
+
+        if (slot.received < slot.total) {
+            return null;
+        }
+
+        // parity still on its way when the data completed the frame isn't lost, so only the parity that came counts
+        _statistics.onFrameEnded(slot.total + slot.parityArrived, slot.firstPass);
+        _statistics.onFrameCompleted(packet.getTimestamp(), slot.lastArrivalAt);
+
+        CompleteData complete = new CompleteData(_username, frameId, packet.getTimestamp(), slot.buffer, slot.length, this);
+        slot.buffer = null;
+        slot.reset();
+        _lastCompletedFrameId = frameId;
+        dropFramesBefore(frameId);
+        return complete;
+    }
+
+    // returns the parity group the fragment belongs to, or -1 if it was a duplicate or doesn't fit the frame
+    private int insertData(FrameSlot slot, DataPacket packet) {
+        int sequence = packet.getSequenceNumber();
+        if (sequence >= slot.total || slot.isReceived(sequence)) {
+            return -1;
+        }
+
+        int offset = sequence * slot.fragmentSize;
+        int length = packet.getPayloadLength();
+        if (length > slot.fragmentSize || (sequence < slot.total - 1 && length != slot.fragmentSize)) {
+            return -1;
+        }
+
+        packet.copyPayload(slot.buffer, offset);
+        slot.markReceived(sequence);
+        if (sequence == slot.total - 1) {
+            slot.length = offset + length;
+        }
+        return slot.parityCount > 0 ? sequence % slot.parityCount : 0;
+    }
+
+    private int insertParity(FrameSlot slot, DataPacket packet) {
+        int group = packet.getSequenceNumber() - slot.total;
+        int parityCount = packet.getParityCount();
+        if (group < 0 || group >= parityCount || packet.getPayloadLength() != slot.fragmentSize
+                || (slot.parityCount != 0 && slot.parityCount != parityCount)
+                || packet.getFrameLength() > slot.total * slot.fragmentSize
+                || packet.getFrameLength() <= (slot.total - 1) * slot.fragmentSize) {
+            return -1;
+        }
+
+        if (slot.parityCount == 0) {
+            slot.startParity(parityCount, packet.getFrameLength());
+        }
+        if (slot.isParityReceived(group)) {
+            return -1;
+        }
+
+        packet.copyPayload(slot.parity, group * slot.fragmentSize);
+        slot.markParityReceived(group);
+        return group;
+    }
+
+    // parity group k is the xor of fragments k, k + parityCount, k + 2 * parityCount..., zero padded to the
+    // fragment size, so one missing fragment per group can be rebuilt from the others without a retransmit
+    private void recover(FrameSlot slot, int group) {
+        if (!slot.isParityReceived(group)) {
+            return;
+        }
+
+        int missing = -1;
+        for (int i = group; i < slot.total; i += slot.parityCount) {
+            if (!slot.isReceived(i)) {
+                if (missing >= 0) return;
+                missing = i;
+            }
+        }
+        if (missing < 0) {
+            return;
+        }
+
+        int size = slot.fragmentSize;
+        int offset = missing * size;
+        int length = Math.min(size, slot.frameLength - offset);
+        System.arraycopy(slot.parity, group * size, slot.buffer, offset, length);
+
+        for (int i = group; i < slot.total; i += slot.parityCount) {
+            if (i == missing) continue;
+            int otherOffset = i * size;
+            int overlap = Math.min(length, slot.frameLength - otherOffset);
+            for (int b = 0; b < overlap; b++) {
+                slot.buffer[offset + b] ^= slot.buffer[otherOffset + b];
+            }
+        }
+
+        slot.markReceived(missing);
+        if (missing == slot.total - 1) {
+            slot.length = slot.frameLength;
+        }
+    }
+
+    // drops frames that started arriving before the given local time and never completed
+    public synchronized void expireFrames(long startedBefore) {
+        for (FrameSlot slot : _slots) {
+            if (slot.isInUse() && slot.startedAt < startedBefore) {
+                slot.reset();
+            }
+        }
+    }
+
+    public ReceiveStatistics getStatistics() {
+        return _statistics;
+    }
+
+    // true while any frame has some fragments in but not all of them
+    public synchronized boolean isAssembling() {
+        for (FrameSlot slot : _slots) {
+            if (slot.isInUse()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getSlotCount() {
+        return _slots.length;
+    }
+
+    // writes the frame id and the missing fragment ranges of a frame that has gone quiet,
+    // returns false when that slot has nothing worth asking for
+    public synchronized boolean putNack(int slotIndex, ByteBuffer buffer, long now, long quietMs) {
+        FrameSlot slot = _slots[slotIndex];
+        if (!slot.isInUse() || slot.nackCount >= MAX_NACKS_PER_FRAME
+                || now - Math.max(slot.lastArrivalAt, slot.nackedAt) < quietMs) {
+            return false;
+        }
+
+        int ranges = 0;
+        int missing = slot.nextMissing(0);
+        while (missing >= 0 && ranges < MAX_NACK_RANGES) {
+            ranges++;
+            missing = slot.nextMissing(slot.nextReceived(missing));
+        }
+        if (ranges == 0) {
+            return false;
+        }
+
+        WireFormat.putVarLong(buffer, slot.frameId);
+        WireFormat.putVarLong(buffer, ranges);
+        int start = slot.nextMissing(0);
+        for (int i = 0; i < ranges; i++) {
+            int end = slot.nextReceived(start);
+            WireFormat.putVarLong(buffer, start);
+            WireFormat.putVarLong(buffer, end - start);
+            start = slot.nextMissing(end);
+        }
+
+        slot.nackedAt = now;
+        slot.nackCount++;
+        return true;
+    }
+
+    public synchronized void clear() {
+        for (FrameSlot slot : _slots) {
+            slot.reset();
+        }
+        _lastCompletedFrameId = Long.MIN_VALUE;
+    }
+
+    // called once the receiver is done with a completed frame so its buffer can hold the next one
+    void recycle(byte[] buffer) {
+        _freeBuffers.offer(buffer);
+    }
+
+    private FrameSlot findSlot(long frameId, int total, int fragmentSize) {
+        if ((long) total * fragmentSize > MAX_FRAME_SIZE) {
+            return null;
+        }
+
+        FrameSlot free = null;
+        FrameSlot oldest = null;
+        for (FrameSlot slot : _slots) {
+            if (!slot.isInUse()) {
+                if (free == null) free = slot;
+            } else if (slot.frameId == frameId) {
+                return slot.total == total && slot.fragmentSize == fragmentSize ? slot : null;
+            } else if (oldest == null || slot.frameId < oldest.frameId) {
+                oldest = slot;
+            }
+        }
+
+        FrameSlot slot = free;
+        if (slot == null) {
+            // every slot is busy, the oldest partial frame is the least likely to finish
+            if (frameId < oldest.frameId) return null;
+            oldest.reset();
+            slot = oldest;
+        }
+
+        slot.start(frameId, total, fragmentSize, takeBuffer(total * fragmentSize));
+        return slot;
+    }
+
+    private byte[] takeBuffer(int capacity) {
+        byte[] buffer = _freeBuffers.poll();
+        if (buffer == null || buffer.length < capacity) {
+            buffer = new byte[capacity];
+        }
+        return buffer;
+    }
+
+    private void dropFramesBefore(long frameId) {
+        for (FrameSlot slot : _slots) {
+            if (slot.isInUse() && slot.frameId < frameId) {
+                slot.reset();
+            }
+        }
+    }
+
+    private class FrameSlot {
+        long frameId;
+        long startedAt;
+        long lastArrivalAt;
+        long nackedAt;
+        int nackCount;
+        int total;
+        int fragmentSize;
+        int received;
+        // fragments that made it the first time they were sent, what the loss is reported from
+        int firstPass;
+        int parityArrived;
+        int length;
+        byte[] buffer;
+        long[] receivedBits = new long[1];
+        int parityCount;
+        int frameLength;
+        byte[] parity = new byte[0];
+        long[] parityBits = new long[1];
+
+        boolean isInUse() {
+            return total > 0;
+        }
+
+        void start(long frameId, int total, int fragmentSize, byte[] buffer) {
+            this.frameId = frameId;
+            this.total = total;
+            this.fragmentSize = fragmentSize;
+            this.buffer = buffer;
+            this.startedAt = System.currentTimeMillis();
+            this.lastArrivalAt = startedAt;
+            int words = (total + 63) >>> 6;
+            if (receivedBits.length < words) {
+                receivedBits = new long[words];
+            }
+        }
+
+        void startParity(int parityCount, int frameLength) {
+            this.parityCount = parityCount;
+            this.frameLength = frameLength;
+            if (parity.length < parityCount * fragmentSize) {
+                parity = new byte[parityCount * fragmentSize];
+            }
+            int words = (parityCount + 63) >>> 6;
+            if (parityBits.length < words) {
+                parityBits = new long[words];
+            }
+        }
+
+        boolean isParityReceived(int group) {
+            return (parityBits[group >>> 6] & (1L << group)) != 0;
+        }
+
+        void markParityReceived(int group) {
+            parityBits[group >>> 6] |= 1L << group;
+        }
+
+        boolean isReceived(int sequence) {
+            return (receivedBits[sequence >>> 6] & (1L << sequence)) != 0;
+        }
+
+        void markReceived(int sequence) {
+            receivedBits[sequence >>> 6] |= 1L << sequence;
+            received++;
+        }
+
+        // first missing fragment at or after from, -1 if there is none
+        int nextMissing(int from) {
+            for (int i = from; i < total; i++) {
+                if (!isReceived(i)) return i;
+            }
+            return -1;
+        }
+
+        // first received fragment at or after from, total if there is none
+        int nextReceived(int from) {
+            for (int i = from; i < total; i++) {
+                if (isReceived(i)) return i;
+            }
+            return total;
+        }
+
+        void reset() {
+            if (isInUse() && received < total) {
+                _statistics.onFrameEnded(total + parityCount, firstPass);
+            }
+            if (buffer != null) {
+                recycle(buffer);
+                buffer = null;
+            }
+            Arrays.fill(receivedBits, 0, (total + 63) >>> 6, 0L);
+            Arrays.fill(parityBits, 0, (parityCount + 63) >>> 6, 0L);
+            parityCount = 0;
+            frameLength = 0;
+            total = 0;
+            received = 0;
+            firstPass = 0;
+            parityArrived = 0;
+            length = 0;
+            nackedAt = 0;
+            nackCount = 0;
+        }
+    }
+}
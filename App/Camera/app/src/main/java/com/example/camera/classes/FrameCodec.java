@@ -0,0 +1,15 @@
+package com.example.camera.classes;
+
+import java.io.ByteArrayOutputStream;
+
+// compresses a rectangle of argb pixels whose rows are stride apart. the tile delta encoder uses it for
+// keyframes and for the packed changed tiles, and writes the codec id into every frame, so the sender
+// can switch codecs between any two frames without a keyframe
+public interface FrameCodec {
+    int getId();
+
+    void encode(int[] pixels, int offset, int stride, int width, int height, int quality, ByteArrayOutputStream out);
+
+    // fills width by height pixels, false when the data doesn't hold an image of that size
+    boolean decode(byte[] data, int offset, int length, int[] pixels, int pixelOffset, int stride, int width, int height);
+}
@@ -0,0 +1,37 @@
+package com.example.camera.classes;
+
+public class FrameCodecs {
+    // 0 is never sent, it stands for the plain jpeg frames peers without codec support understand
+    public static final int CODEC_PLAIN = 0;
+    public static final int CODEC_JPEG = 1;
+    public static final int CODEC_DEFLATE = 2;
+    public static final int CODEC_LOSSLESS = 3;
+    public static final int CODEC_COUNT = 4;
+
+    // the bit per codec we can decode, sent in every hello
+    public static final int SUPPORTED = 1 << CODEC_JPEG | 1 << CODEC_DEFLATE | 1 << CODEC_LOSSLESS;
+
+    // fastest first. jpeg runs in native code, the pure java ones cost more cpu the more they keep
+    public static final int[] SPEED_ORDER = {CODEC_JPEG, CODEC_DEFLATE, CODEC_LOSSLESS};
+
+    // codecs keep scratch buffers, so every encoder and decoder gets its own
+    public static FrameCodec create(int codecId) {
+        switch (codecId) {
+            case CODEC_JPEG:
+                return new JpegFrameCodec();
+            case CODEC_DEFLATE:
+                return new DeflateFrameCodec(CODEC_DEFLATE, false);
+            case CODEC_LOSSLESS:
+                return new DeflateFrameCodec(CODEC_LOSSLESS, true);
+            default:
+                return null;
+        }
+    }
+
+    public static int speedTierOf(int codecId) {
+        for (int tier = 0; tier < SPEED_ORDER.length; tier++) {
+            if (SPEED_ORDER[tier] == codecId) return tier;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.camera.classes;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+// decodes received frames on a few worker threads instead of the ui thread. only one worker decodes a
+// participant at a time since its decoder keeps the reference frame. every frame is applied in order, since
+// skipping a delta frame breaks every one after it, but a worker that finds several waiting applies them all
+// and only turns the last into a bitmap. the queue stays as short as the tile needs, a participant that
+// falls further behind than that asks for a keyframe and drops the deltas until it comes
+public class FrameDecodePool {
+    private static final int MAX_WORKERS = 2;
+    // one waiting while the last is decoded, and one the jitter buffer hands over right behind it after a
+    // repaired loss. past this the deltas are dropped and a keyframe asked for
+    private static final int MAX_QUEUED_FRAMES = 2;
+    // one being drawn, one waiting to be drawn and one being filled
+    private static final int BITMAPS_PER_PARTICIPANT = 3;
+    // the share of the workers' time the budget promises away, the rest covers keyframes and the scaling
+    private static final double BUDGET_SHARE = 0.5;
+    private static final double DECODE_COST_SMOOTHING = 0.1;
+
+    private final ExecutorService _workers;
+    private final ConcurrentHashMap<String, Participant> _participants = new ConcurrentHashMap<>();
+    private final BiConsumer<String, Bitmap> _onFrameDecoded;
+    private final BiConsumer<String, Long> _onDecodeFailed;
+    private final int _workerCount;
+    // nanoseconds a worker spends per decoded pixel, 0 until the first frame
+    private volatile double _nanosPerPixel;
+
+    private static class Participant {
+        final TileDeltaDecoder decoder = new TileDeltaDecoder();
+        final BitmapPool bitmaps = new BitmapPool(BITMAPS_PER_PARTICIPANT);
+        // the frame shrunk to the tile, reused from frame to frame
+        int[] scaled = new int[0];
+        volatile int targetWidth;
+        volatile int targetHeight;
+        // swapped with batch whenever a worker takes what is waiting, so neither is ever reallocated
+        ArrayDeque<CompleteData> queued = new ArrayDeque<>();
+        ArrayDeque<CompleteData> batch = new ArrayDeque<>();
+        boolean decoding;
+        boolean removed;
+        // deltas are dropped without decoding until a keyframe comes
+        boolean awaitingKeyframe;
+    }
+
+    // onFrameDecoded runs on a worker thread. onDecodeFailed gets the id of a frame that didn't follow on or was
+    // dropped, on a worker or on the thread that submitted it
+    public FrameDecodePool(BiConsumer<String, Bitmap> onFrameDecoded, BiConsumer<String, Long> onDecodeFailed) {
+        this._onFrameDecoded = onFrameDecoded;
+        this._onDecodeFailed = onDecodeFailed;
+        this._workerCount = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() / 2));
+        this._workers = Executors.newFixedThreadPool(_workerCount);
+    }
+
+    // takes ownership of the frame, it is released once decoded or dropped. frames of a participant that
+    // wasn't added, or already left, are dropped
+    public void submit(CompleteData data) {
+        String username = data.getUsername();
+        Participant participant = _participants.get(username);
+        if (participant == null) {
+            data.release();
+            return;
+        }
+
+        boolean start;
+        long droppedFrameId = -1;
+        synchronized (participant) {
+            if (participant.removed) {
+                data.release();
+                return;
+            }
+            // a keyframe makes the frames queued before it unnecessary
+            if (TileDeltaDecoder.isKeyframe(data.getPayload(), data.getLength())) {
+                releaseQueued(participant);
+                participant.awaitingKeyframe = false;
+            } else if (participant.awaitingKeyframe || participant.queued.size() >= MAX_QUEUED_FRAMES) {
+                releaseQueued(participant);
+                participant.awaitingKeyframe = true;
+                droppedFrameId = data.getFrameId();
+                data.release();
+            }
+            if (droppedFrameId < 0) {
+                participant.queued.add(data);
+            }
+            start = droppedFrameId < 0 && !participant.decoding;
+            participant.decoding |= start;
+        }
+
+        if (droppedFrameId >= 0) {
+            // asked again with every frame dropped, the transport keeps that to one request per round trip
+            _onDecodeFailed.accept(username, droppedFrameId);
+            return;
+        }
+        if (start) {
+            Participant toDecode = participant;
+            _workers.execute(() -> drain(toDecode));
+        }
+    }
+
+    // the only way a participant is created, so a frame still in flight after remove() can't bring one back
+    public void add(String username) {
+        _participants.putIfAbsent(username, new Participant());
+    }
+
+    // the size of the tile a participant is drawn in. frames are shrunk to fit it and never enlarged,
+    // so the bitmaps kept per participant are no bigger than the tile
+    public void setTargetSize(String username, int width, int height) {
+        Participant participant = _participants.get(username);
+        if (participant == null) return;
+        participant.targetWidth = width;
+        participant.targetHeight = height;
+        participant.decoder.setTargetSize(width, height);
+    }
+
+    // gives back a bitmap handed to onFrameDecoded once it is no longer drawn
+    public void recycle(String username, Bitmap frame) {
+        Participant participant = _participants.get(username);
+        if (participant != null) {
+            participant.bitmaps.release(frame);
+        }
+    }
+
+    private static void releaseQueued(Participant participant) {
+        CompleteData queued;
+        while ((queued = participant.queued.poll()) != null) {
+            queued.release();
+        }
+    }
+
+    // applies whatever is waiting in order, then turns only the newest picture into a bitmap, until nothing is left
+    private void drain(Participant participant) {
+        while (true) {
+            ArrayDeque<CompleteData> batch;
+            synchronized (participant) {
+                if (participant.removed || participant.queued.isEmpty()) {
+                    participant.decoding = false;
+                    return;
+                }
+                batch = participant.queued;
+                participant.queued = participant.batch;
+                participant.batch = batch;
+            }
+
+            TileDeltaDecoder decoder = participant.decoder;
+            String username = null;
+            int decodedFrames = 0;
+            long decodeStart = System.nanoTime();
+            CompleteData data;
+            while ((data = batch.poll()) != null) {
+                username = data.getUsername();
+                long frameId = data.getFrameId();
+                boolean decoded = decoder.decode(data.getPayload(), data.getLength());
+                data.release();
+                if (decoded) {
+                    decodedFrames++;
+                } else {
+                    // a delta frame went missing, nothing after it applies until the next keyframe
+                    _onDecodeFailed.accept(username, frameId);
+                }
+            }
+            if (decodedFrames == 0) {
+                continue;
+            }
+
+            Bitmap frame = toBitmap(participant);
+            onDecoded(System.nanoTime() - decodeStart, (long) decoder.getWidth() * decoder.getHeight() * decodedFrames);
+            if (frame != null) {
+                _onFrameDecoded.accept(username, frame);
+            }
+        }
+    }
+
+    private void onDecoded(long nanos, long pixels) {
+        if (pixels <= 0) return;
+        double sample = (double) nanos / pixels;
+        double current = _nanosPerPixel;
+        _nanosPerPixel = current == 0 ? sample : current + (sample - current) * DECODE_COST_SMOOTHING;
+    }
+
+    // how many pixels a second the workers can decode with time to spare, what the senders are told to stay
+    // under between them. 0 until a frame was decoded
+    public long getDecodeBudget() {
+        double nanosPerPixel = _nanosPerPixel;
+        if (nanosPerPixel <= 0) return 0;
+        return (long) (_workerCount * BUDGET_SHARE * 1_000_000_000L / nanosPerPixel);
+    }
+
+    // null when all of the participant's bitmaps are still waiting to be drawn, the frame is skipped then
+    private static Bitmap toBitmap(Participant participant) {
+        TileDeltaDecoder decoder = participant.decoder;
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        float scale = 1f;
+        if (participant.targetWidth > 0 && participant.targetHeight > 0) {
+            scale = Math.min(1f, Math.min((float) participant.targetWidth / width, (float) participant.targetHeight / height));
+        }
+        int scaledWidth = Math.max(1, Math.round(width * scale));
+        int scaledHeight = Math.max(1, Math.round(height * scale));
+
+        Bitmap frame = participant.bitmaps.obtain(scaledWidth, scaledHeight);
+        if (frame == null) {
+            return null;
+        }
+        if (scaledWidth == width && scaledHeight == height) {
+            frame.setPixels(decoder.getPixels(), 0, width, 0, 0, width, height);
+            return frame;
+        }
+
+        if (participant.scaled.length < scaledWidth * scaledHeight) {
+            participant.scaled = new int[scaledWidth * scaledHeight];
+        }
+        int[] source = decoder.getPixels();
+        int[] target = participant.scaled;
+        for (int y = 0; y < scaledHeight; y++) {
+            int row = (y * height / scaledHeight) * width;
+            int index = y * scaledWidth;
+            for (int x = 0; x < scaledWidth; x++) {
+                target[index + x] = source[row + x * width / scaledWidth];
+            }
+        }
+        frame.setPixels(target, 0, scaledWidth, 0, 0, scaledWidth, scaledHeight);
+        return frame;
+    }
+
+    // for a participant that left, whatever it still had waiting is dropped
+    public void remove(String username) {
+        Participant participant = _participants.remove(username);
+        if (participant == null) return;
+
+        synchronized (participant) {
+            participant.removed = true;
+            releaseQueued(participant);
+        }
+        // bitmaps still out are left to the garbage collector, they may still be on screen
+        participant.bitmaps.clear();
+    }
+
+    public void shutdown() {
+        for (String username : _participants.keySet()) {
+            remove(username);
+        }
+        _workers.shutdownNow();
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.camera.classes;
+
+public class FramePublisher {
+    private final PublishedFrame[] _latest = new PublishedFrame[EncoderSettings.LAYER_COUNT];
+    // plain jpeg frames for the peers that can't decode delta frames, next to the delta frames of the others
+    private final PublishedFrame[] _latestPlain = new PublishedFrame[EncoderSettings.LAYER_COUNT];
+    // the newest frame of each layer that decodes on its own
+    private final long[] _keyframeVersions = new long[EncoderSettings.LAYER_COUNT];
+    private long _version = 0;
+
+    // the frame is shared with every sender, it must not be changed after publishing
+    public synchronized PublishedFrame publish(byte[] data) {
+        _version++;
+        _latest[0] = new PublishedFrame(_version, data);
+        return _latest[0];
+    }
+
+    // one encoded frame per simulcast layer, null for layers nobody wanted. every layer gets its own frame id,
+    // but they all count up together, so a receiver that switches layers never sees an id go backwards
+    public synchronized void publish(byte[][] layers) {
+        for (int layer = 0; layer < _latest.length && layer < layers.length; layer++) {
+            if (layers[layer] != null) {
+                _version++;
+                _latest[layer] = new PublishedFrame(_version, layers[layer]);
+                if (TileDeltaDecoder.isKeyframe(layers[layer], layers[layer].length)) {
+                    _keyframeVersions[layer] = _version;
+                }
+            }
+        }
+    }
+
+    // plain frames share the version counter, so a frame id never means two different frames
+    public synchronized void publishPlain(byte[][] layers) {
+        for (int layer = 0; layer < _latestPlain.length && layer < layers.length; layer++) {
+            if (layers[layer] != null) {
+                _version++;
+                _latestPlain[layer] = new PublishedFrame(_version, layers[layer]);
+            }
+        }
+    }
+
+    // null until something is published, a sender compares versions to tell whether it is new
+    public synchronized PublishedFrame getLatest() {
+        return _latest[0];
+    }
+
+    public synchronized PublishedFrame getLatest(int layer) {
+        return _latest[layer];
+    }
+
+    public synchronized PublishedFrame getLatestPlain(int layer) {
+        return _latestPlain[layer];
+    }
+
+    // true while the newest frame of the layer hasn't started going out. a delta frame published over it would
+    // be encoded against a frame no receiver ever gets
+    public synchronized boolean hasUnsentFrame(int layer) {
+        return _latest[layer] != null && !_latest[layer].isSent();
+    }
+
+    public synchronized long getKeyframeVersion(int layer) {
+        return _keyframeVersions[layer];
+    }
+
+    public synchronized long getVersion() {
+        return _version;
+    }
+
+    // versions keep counting up so receivers never see an old frame id again
+    public synchronized void clear() {
+        for (int layer = 0; layer < _latest.length; layer++) {
+            _latest[layer] = null;
+            _latestPlain[layer] = null;
+        }
+    }
+}
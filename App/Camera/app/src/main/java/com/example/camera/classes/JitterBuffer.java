@@ -0,0 +1,161 @@
+package com.example.camera.classes;
+
+// holds one sender's completed frames in sequence order until their playout time.
+// the time a frame is due is its send timestamp plus the lowest transit time seen lately plus a delay
+// that grows with the measured jitter, so frames that arrive unevenly still come out evenly
+public class JitterBuffer {
+    public static final int MAX_FRAMES = 8;
+
+    private static final int MAX_DELAY_MS = 250;
+    // a frame this far past its playout time is dropped instead of shown
+    private static final int MAX_LATE_MS = 100;
+    private static final float JITTER_MULTIPLIER = 3f;
+    private static final float JITTER_GAIN = 1 / 16f;
+    private static final int TRANSIT_WINDOW_MS = 2000;
+
+    private final CompleteData[] _frames = new CompleteData[MAX_FRAMES];
+    private final long[] _playoutAt = new long[MAX_FRAMES];
+    private int _count;
+    private long _lastPlayedId = Long.MIN_VALUE;
+    private long _droppedFrames;
+    // the newest late frame dropped that the frames after it were encoded against, -1 when none
+    private long _lateFrameId = -1;
+
+    private float _jitterMs;
+    private boolean _hasLastFrame;
+    private long _lastTimestamp;
+    private long _lastArrivalAt;
+
+    // the sender's clock isn't ours, so only the smallest transit is trusted as the base.
+    // it is re-taken every window so clock drift and route changes can't leave it stale
+    private boolean _hasBaseTransit;
+    private long _baseTransit;
+    private long _windowMinTransit = Long.MAX_VALUE;
+    private long _windowStartedAt;
+
+    // frames older than one already shown are dropped, they would only make the video jump back
+    public synchronized void offer(CompleteData frame, long arrivedAt) {
+        if (frame.getFrameId() <= _lastPlayedId) {
+            drop(frame);
+            return;
+        }
+
+        updateTiming(frame.getTimestamp(), arrivedAt);
+        long playoutAt = frame.getTimestamp() + _baseTransit + getTargetDelayMs();
+
+        if (_count == _frames.length) {
+            drop(removeFirst());
+        }
+
+        int index = _count;
+        while (index > 0 && _frames[index - 1].getFrameId() > frame.getFrameId()) {
+            _frames[index] = _frames[index - 1];
+            _playoutAt[index] = _playoutAt[index - 1];
+            index--;
+        }
+        _frames[index] = frame;
+        // never earlier than a frame before it, so sequence order is kept even if timestamps aren't
+        _playoutAt[index] = index > 0 ? Math.max(playoutAt, _playoutAt[index - 1]) : playoutAt;
+        _count++;
+    }
+
+    // returns the oldest frame whose time has come, call again until null. a frame well past its deadline is
+    // dropped, it would only hold the video behind. unless it was a plain jpeg the delta frames after it no
+    // longer follow on, so its id is kept for pollLateFrameId() to ask the sender for a keyframe
+    public synchronized CompleteData poll(long now) {
+        while (_count > 0 && _playoutAt[0] <= now) {
+            long playoutAt = _playoutAt[0];
+            CompleteData due = removeFirst();
+            _lastPlayedId = due.getFrameId();
+            if (now - playoutAt <= MAX_LATE_MS) {
+                return due;
+            }
+
+            if (!isPlain(due)) {
+                _lateFrameId = due.getFrameId();
+            }
+            drop(due);
+        }
+        return null;
+    }
+
+    // the id of the newest late frame dropped since the last call whose loss breaks the delta frames after it,
+    // or -1
+    public synchronized long pollLateFrameId() {
+        long lateFrameId = _lateFrameId;
+        _lateFrameId = -1;
+        return lateFrameId;
+    }
+
+    // Long.MAX_VALUE while there is nothing to play
+    public synchronized long getNextPlayoutAt() {
+        return _count > 0 ? _playoutAt[0] : Long.MAX_VALUE;
+    }
+
+    public synchronized int getTargetDelayMs() {
+        return Math.min(MAX_DELAY_MS, Math.round(_jitterMs * JITTER_MULTIPLIER));
+    }
+
+    public synchronized float getJitterMs() {
+        return _jitterMs;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return _droppedFrames;
+    }
+
+    // frame ids restart with a new session, so everything measured so far goes too
+    public synchronized void clear() {
+        while (_count > 0) {
+            removeFirst().release();
+        }
+        _lastPlayedId = Long.MIN_VALUE;
+        _lateFrameId = -1;
+        _jitterMs = 0;
+        _hasLastFrame = false;
+        _hasBaseTransit = false;
+        _windowMinTransit = Long.MAX_VALUE;
+    }
+
+    // interarrival jitter as in rtp: how much the gap between arrivals differs from the gap between sends
+    private void updateTiming(long timestamp, long arrivedAt) {
+        if (_hasLastFrame) {
+            long difference = (arrivedAt - _lastArrivalAt) - (timestamp - _lastTimestamp);
+            _jitterMs += (Math.abs(difference) - _jitterMs) * JITTER_GAIN;
+        }
+        _hasLastFrame = true;
+        _lastTimestamp = timestamp;
+        _lastArrivalAt = arrivedAt;
+
+        long transit = arrivedAt - timestamp;
+        _windowMinTransit = Math.min(_windowMinTransit, transit);
+        if (!_hasBaseTransit || transit < _baseTransit) {
+            _hasBaseTransit = true;
+            _baseTransit = transit;
+            _windowStartedAt = arrivedAt;
+        } else if (arrivedAt - _windowStartedAt >= TRANSIT_WINDOW_MS) {
+            _baseTransit = _windowMinTransit;
+            _windowMinTransit = Long.MAX_VALUE;
+            _windowStartedAt = arrivedAt;
+        }
+    }
+
+    // plain jpeg frames decode on their own and nothing is encoded against them
+    private static boolean isPlain(CompleteData frame) {
+        byte[] data = frame.getPayload();
+        return frame.getLength() >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8;
+    }
+
+    private CompleteData removeFirst() {
+        CompleteData first = _frames[0];
+        System.arraycopy(_frames, 1, _frames, 0, _count - 1);
+        System.arraycopy(_playoutAt, 1, _playoutAt, 0, _count - 1);
+        _frames[--_count] = null;
+        return first;
+    }
+
+    private void drop(CompleteData frame) {
+        frame.release();
+        _droppedFrames++;
+    }
+}
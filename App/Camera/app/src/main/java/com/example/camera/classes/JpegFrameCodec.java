@@ -0,0 +1,53 @@
+package com.example.camera.classes;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+
+// the fast tier, android's jpeg runs in native code
+public class JpegFrameCodec implements FrameCodec {
+    private Bitmap _scratch;
+    // every decode reuses the last decoded bitmap when the image fits in it
+    private final BitmapFactory.Options _options = new BitmapFactory.Options();
+
+    public JpegFrameCodec() {
+        _options.inMutable = true;
+    }
+
+    @Override
+    public int getId() {
+        return FrameCodecs.CODEC_JPEG;
+    }
+
+    @Override
+    public void encode(int[] pixels, int offset, int stride, int width, int height, int quality, ByteArrayOutputStream out) {
+        if (_scratch == null || _scratch.getWidth() != width || _scratch.getHeight() != height) {
+            _scratch = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        _scratch.setPixels(pixels, offset, stride, 0, 0, width, height);
+        _scratch.compress(Bitmap.CompressFormat.JPEG, quality, out);
+    }
+
+    @Override
+    public boolean decode(byte[] data, int offset, int length, int[] pixels, int pixelOffset, int stride, int width, int height) {
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeByteArray(data, offset, length, _options);
+        } catch (IllegalArgumentException e) {
+            // too big for the bitmap we had, this one gets reused from now on
+            _options.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(data, offset, length, _options);
+        }
+        if (decoded == null) {
+            return false;
+        }
+        _options.inBitmap = decoded;
+
+        if (decoded.getWidth() < width || decoded.getHeight() < height) {
+            return false;
+        }
+        decoded.getPixels(pixels, pixelOffset, stride, 0, 0, width, height);
+        return true;
+    }
+}
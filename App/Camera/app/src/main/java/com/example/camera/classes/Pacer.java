@@ -0,0 +1,65 @@
+package com.example.camera.classes;
+
+// token bucket in bytes, refilled continuously at the pacing rate
+public class Pacer {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private int _burstBytes;
+    private long _bytesPerSecond;
+    private double _tokens;
+    private long _refilledAt = System.nanoTime();
+
+    public Pacer(long bitsPerSecond, int burstBytes) {
+        this._bytesPerSecond = Math.max(1, bitsPerSecond / 8);
+        this._burstBytes = burstBytes;
+        this._tokens = burstBytes;
+    }
+
+    public synchronized void setRate(long bitsPerSecond) {
+        refill(System.nanoTime());
+        _bytesPerSecond = Math.max(1, bitsPerSecond / 8);
+    }
+
+    // a few datagrams of the size the path takes, so a burst doesn't overrun a small router queue
+    public synchronized void setBurst(int burstBytes) {
+        refill(System.nanoTime());
+        _burstBytes = burstBytes;
+        _tokens = Math.min(_tokens, burstBytes);
+    }
+
+    public synchronized long getRate() {
+        return _bytesPerSecond * 8;
+    }
+
+    // for packets that skip the queue, they still use up the budget so the paced ones slow down to make room
+    public synchronized void consume(int bytes) {
+        refill(System.nanoTime());
+        _tokens -= bytes;
+    }
+
+    // gives back the tokens of a packet that was acquired but never went out
+    public synchronized void refund(int bytes) {
+        refill(System.nanoTime());
+        _tokens = Math.min(_burstBytes, _tokens + bytes);
+    }
+
+    // takes the tokens and returns 0, or returns how long to wait before there are enough.
+    // the burst allowance lets a few packets go out back to back
+    public synchronized long tryAcquire(int bytes) {
+        long now = System.nanoTime();
+        refill(now);
+
+        // a packet bigger than the burst can never fit, so it only waits for a full bucket
+        double needed = Math.min(bytes, _burstBytes);
+        if (_tokens >= needed) {
+            _tokens -= bytes;
+            return 0;
+        }
+        return (long) Math.ceil((needed - _tokens) * NANOS_PER_SECOND / _bytesPerSecond);
+    }
+
+    private void refill(long now) {
+        _tokens = Math.min(_burstBytes, _tokens + (double) (now - _refilledAt) * _bytesPerSecond / NANOS_PER_SECOND);
+        _refilledAt = now;
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.camera.classes;
+
+// packets are taken and put back by the thread that owns the pool, without locking. the one other thread
+// that finishes with packets hands them back through a ring, which the owner empties once it runs dry
+public class PacketPool {
+    private final DataPacket[] _freePackets;
+    private int _freeCount;
+    private final PacketRing _returned;
+
+    public PacketPool(int size, int packetCapacity) {
+        _freePackets = new DataPacket[size];
+        for (int i = 0; i < size; i++) {
+            _freePackets[i] = new DataPacket(packetCapacity);
+        }
+        _freeCount = size;
+        // big enough for every packet, so handing one back never fails
+        _returned = new PacketRing(size, PacketRing.WaitStrategy.SPIN);
+    }
+
+    // owner only, returns null when every packet is in use
+    public DataPacket acquire() {
+        if (_freeCount == 0) {
+            DataPacket returned;
+            while ((returned = _returned.poll()) != null) {
+                _freePackets[_freeCount++] = returned;
+            }
+            if (_freeCount == 0) {
+                return null;
+            }
+        }
+
+        DataPacket packet = _freePackets[--_freeCount];
+        _freePackets[_freeCount] = null;
+        packet.getBuffer().clear();
+        return packet;
+    }
+
+    // owner only
+    public void release(DataPacket packet) {
+        _freePackets[_freeCount++] = packet;
+    }
+
+    // for the one thread other than the owner that releases packets
+    public void returnPacket(DataPacket packet) {
+        _returned.offer(packet);
+    }
+
+    // only a rough count while packets are on their way back
+    public int getAvailable() {
+        return _freeCount + _returned.size();
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.camera.classes;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// fixed ring of packet slots between exactly one producer and one consumer thread.
+// nothing is allocated or locked per packet, each side only writes its own index
+public class PacketRing {
+    public enum WaitStrategy {
+        // lowest latency, but keeps a core busy the whole call
+        SPIN,
+        // gives the core away between checks, still never sleeps
+        YIELD,
+        // spins briefly, then sleeps until the producer wakes it
+        PARK
+    }
+
+    private static final int SPINS_BEFORE_PARK = 100;
+
+    private final DataPacket[] _slots;
+    private final int _mask;
+    private final AtomicLong _head = new AtomicLong();
+    private final AtomicLong _tail = new AtomicLong();
+    private final AtomicLong _droppedPackets = new AtomicLong();
+    private volatile Thread _parkedConsumer;
+    private volatile WaitStrategy _waitStrategy;
+
+    // capacity is rounded up to a power of two so the slot is a mask instead of a division
+    public PacketRing(int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this._slots = new DataPacket[size];
+        this._mask = size - 1;
+        this._waitStrategy = waitStrategy;
+    }
+
+    // producer only. a full ring drops the new packet, the consumer owns the old ones
+    public boolean offer(DataPacket packet) {
+        long tail = _tail.get();
+        if (tail - _head.get() == _slots.length) {
+            _droppedPackets.incrementAndGet();
+            return false;
+        }
+
+        _slots[(int) (tail & _mask)] = packet;
+        // a full volatile write, so it can't be reordered after the parked consumer check below
+        _tail.set(tail + 1);
+
+        Thread parked = _parkedConsumer;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+        return true;
+    }
+
+    // consumer only, null when empty
+    public DataPacket poll() {
+        long head = _head.get();
+        if (head == _tail.get()) {
+            return null;
+        }
+
+        int slot = (int) (head & _mask);
+        DataPacket packet = _slots[slot];
+        _slots[slot] = null;
+        _head.lazySet(head + 1);
+        return packet;
+    }
+
+    // consumer only, waits the configured way until a packet is there
+    public DataPacket take() throws InterruptedException {
+        int idle = 0;
+        while (true) {
+            DataPacket packet = poll();
+            if (packet != null) {
+                return packet;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            idle = idle(idle);
+        }
+    }
+
+    private int idle(int idle) {
+        switch (_waitStrategy) {
+            case SPIN:
+                return idle;
+            case YIELD:
+                Thread.yield();
+                return idle;
+            default:
+                if (idle < SPINS_BEFORE_PARK) {
+                    return idle + 1;
+                }
+                _parkedConsumer = Thread.currentThread();
+                // checked again after announcing the park, so an offer in between can't be missed
+                if (isEmpty()) {
+                    LockSupport.park(this);
+                }
+                _parkedConsumer = null;
+                return 0;
+        }
+    }
+
+    public boolean isEmpty() {
+        return _head.get() == _tail.get();
+    }
+
+    public int size() {
+        return (int) (_tail.get() - _head.get());
+    }
+
+    public int getCapacity() {
+        return _slots.length;
+    }
+
+    // packets turned away because the consumer fell a whole ring behind
+    public long getDroppedPackets() {
+        return _droppedPackets.get();
+    }
+
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this._waitStrategy = waitStrategy;
+        Thread parked = _parkedConsumer;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.camera.classes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class Packetizer {
+    private final int _wireVersion;
+    private final int _streamId;
+    private final int _fragmentSize;
+    private final int _packetCapacity;
+    private final SentFrame[] _history;
+    private int _current;
+    private volatile int _parityGroupSize;
+    private byte[] _parity = new byte[0];
+
+    public Packetizer(int wireVersion, int streamId, int fragmentSize, int historySize) {
+        _wireVersion = wireVersion;
+        _streamId = streamId;
+        _fragmentSize = fragmentSize;
+        _packetCapacity = fragmentSize + (wireVersion == WireFormat.VERSION_LEGACY
+                ? WireFormat.LEGACY_HEADER_SIZE
+                : WireFormat.MAX_COMPACT_HEADER_SIZE);
+
+        _history = new SentFrame[historySize];
+        for (int i = 0; i < historySize; i++) {
+            _history[i] = new SentFrame();
+        }
+    }
+
+    // splits the frame once, every peer on this wire version is then sent the same buffers.
+    // the oldest frame in the history is overwritten, so it can no longer be retransmitted
+    public synchronized void packetize(PublishedFrame frame, long usernameKey, int senderId, long timestamp, boolean checksum) {
+        if (_history[_current].frameVersion == frame.getVersion()) {
+            return;
+        }
+
+        _current = (_current + 1) % _history.length;
+        SentFrame sent = _history[_current];
+
+        byte[] data = frame.getData();
+        int count = (data.length + _fragmentSize - 1) / _fragmentSize;
+        int parityCount = _parityGroupSize > 0 && count > 1 && _wireVersion != WireFormat.VERSION_LEGACY
+                ? (count + _parityGroupSize - 1) / _parityGroupSize
+                : 0;
+        sent.ensureCapacity(count + parityCount);
+
+        for (int i = 0; i < count; i++) {
+            int start = i * _fragmentSize;
+            int length = Math.min(_fragmentSize, data.length - start);
+
+            ByteBuffer packet = sent.packets[i];
+            packet.clear();
+            if (_wireVersion == WireFormat.VERSION_LEGACY) {
+                WireFormat.putLegacyHeader(packet, usernameKey, timestamp, i, count);
+            } else {
+                WireFormat.putCompactHeader(packet, _streamId, checksum, senderId,
+                        frame.getVersion(), timestamp, i, count, _fragmentSize);
+            }
+            packet.put(data, start, length);
+            if (checksum && _wireVersion != WireFormat.VERSION_LEGACY) {
+                WireFormat.putChecksum(packet, 0);
+            }
+
+            sent.readOnlyPackets[i].limit(packet.position());
+        }
+
+        if (parityCount > 0) {
+            putParity(sent, frame, senderId, timestamp, checksum, count, parityCount);
+        }
+
+        sent.packetCount = count + parityCount;
+        sent.frameVersion = frame.getVersion();
+        sent.packetizedAt = System.currentTimeMillis();
+    }
+
+    // fragment k, k + n, k + 2n... all go into parity fragment k, so n parity fragments can rebuild n lost ones
+    private void putParity(SentFrame sent, PublishedFrame frame, int senderId, long timestamp, boolean checksum,
+                           int count, int parityCount) {
+        byte[] data = frame.getData();
+        if (_parity.length < parityCount * _fragmentSize) {
+            _parity = new byte[parityCount * _fragmentSize];
+        }
+        Arrays.fill(_parity, 0, parityCount * _fragmentSize, (byte) 0);
+
+        for (int i = 0; i < count; i++) {
+            int start = i * _fragmentSize;
+            int length = Math.min(_fragmentSize, data.length - start);
+            int parityStart = (i % parityCount) * _fragmentSize;
+            for (int b = 0; b < length; b++) {
+                _parity[parityStart + b] ^= data[start + b];
+            }
+        }
+
+        for (int k = 0; k < parityCount; k++) {
+            ByteBuffer packet = sent.packets[count + k];
+            packet.clear();
+            WireFormat.putParityHeader(packet, _streamId, checksum, senderId, frame.getVersion(),
+                    timestamp, count + k, count, _fragmentSize, parityCount, data.length);
+            packet.put(_parity, k * _fragmentSize, _fragmentSize);
+            if (checksum) {
+                WireFormat.putChecksum(packet, 0);
+            }
+
+            sent.readOnlyPackets[count + k].limit(packet.position());
+        }
+    }
+
+    // data fragments per parity fragment, 0 turns parity off
+    public void setParityGroupSize(int parityGroupSize) {
+        _parityGroupSize = parityGroupSize;
+    }
+
+    public int getParityGroupSize() {
+        return _parityGroupSize;
+    }
+
+    // more parity the lossier the link, none on a clean one
+    public static int parityGroupSizeFor(float lossRate) {
+        if (lossRate < 0.01f) return 0;
+        if (lossRate < 0.03f) return 16;
+        if (lossRate < 0.08f) return 8;
+        if (lossRate < 0.15f) return 4;
+        return 2;
+    }
+
+    public int getWireVersion() {
+        return _wireVersion;
+    }
+
+    public int getStreamId() {
+        return _streamId;
+    }
+
+    public int getPacketCount() {
+        return _history[_current].packetCount;
+    }
+
+    // a read only view of the newest frame rewound to the start, only for the sending thread
+    public ByteBuffer getPacket(int index) {
+        ByteBuffer packet = _history[_current].readOnlyPackets[index];
+        packet.position(0);
+        return packet;
+    }
+
+    // copies an older packet into the buffer, marked as a retransmit. false once it's too old or overwritten
+    public synchronized boolean putRetransmit(long frameVersion, int index, long packetizedAfter, ByteBuffer into) {
+        for (SentFrame sent : _history) {
+            if (sent.frameVersion == frameVersion) {
+                if (sent.packetizedAt < packetizedAfter || index >= sent.packetCount) {
+                    return false;
+                }
+                ByteBuffer packet = sent.readOnlyPackets[index].duplicate();
+                packet.position(0);
+                into.clear();
+                into.put(packet);
+                into.flip();
+                WireFormat.markRetransmit(into);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // true while the frame is still in the history
+    public synchronized boolean contains(long frameVersion) {
+        for (SentFrame sent : _history) {
+            if (sent.frameVersion == frameVersion) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void reset() {
+        for (SentFrame sent : _history) {
+            sent.packetCount = 0;
+            sent.frameVersion = -1;
+        }
+    }
+
+    private class SentFrame {
+        ByteBuffer[] packets = new ByteBuffer[0];
+        ByteBuffer[] readOnlyPackets = new ByteBuffer[0];
+        int packetCount;
+        long frameVersion = -1;
+        long packetizedAt;
+
+        void ensureCapacity(int count) {
+            if (packets.length >= count) {
+                return;
+            }
+
+            int size = Math.max(count, packets.length * 2);
+            ByteBuffer[] grownPackets = new ByteBuffer[size];
+            ByteBuffer[] grownReadOnlyPackets = new ByteBuffer[size];
+            System.arraycopy(packets, 0, grownPackets, 0, packets.length);
+            System.arraycopy(readOnlyPackets, 0, grownReadOnlyPackets, 0, readOnlyPackets.length);
+
+            for (int i = packets.length; i < size; i++) {
+                grownPackets[i] = ByteBuffer.allocateDirect(_packetCapacity);
+                grownReadOnlyPackets[i] = grownPackets[i].asReadOnlyBuffer();
+            }
+
+            packets = grownPackets;
+            readOnlyPackets = grownReadOnlyPackets;
+        }
+    }
+}
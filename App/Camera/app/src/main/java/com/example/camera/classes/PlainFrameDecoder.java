@@ -0,0 +1,63 @@
+package com.example.camera.classes;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+// decodes the plain jpeg frames of senders without the tile codec. the only part of decoding that needs
+// android, so TileDeltaDecoder only creates one once such a frame shows up and runs on a plain jvm otherwise
+public class PlainFrameDecoder {
+    // plain frames decode into the same bitmap every time
+    private final BitmapFactory.Options _options = new BitmapFactory.Options();
+    private Bitmap _frame;
+
+    // false when the data isn't a jpeg. the frame is shrunk by powers of two as long as it stays at least
+    // as big as the target, plain frames are never patched so nothing needs the full size
+    public boolean decode(byte[] data, int length, int targetWidth, int targetHeight) {
+        BitmapFactory.Options options = _options;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+
+        int sampleSize = 1;
+        while (targetWidth > 0 && targetHeight > 0
+                && options.outWidth / (sampleSize * 2) >= targetWidth
+                && options.outHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+
+        _frame = decodeReusing(data, length, options);
+        return _frame != null;
+    }
+
+    public int getWidth() {
+        return _frame.getWidth();
+    }
+
+    public int getHeight() {
+        return _frame.getHeight();
+    }
+
+    // argb, row by row, getWidth() pixels wide
+    public void getPixels(int[] pixels) {
+        _frame.getPixels(pixels, 0, _frame.getWidth(), 0, 0, _frame.getWidth(), _frame.getHeight());
+    }
+
+    // decodes into the last frame's bitmap, or a new one when the frame no longer fits in it
+    private static Bitmap decodeReusing(byte[] data, int length, BitmapFactory.Options options) {
+        try {
+            Bitmap frame = BitmapFactory.decodeByteArray(data, 0, length, options);
+            options.inBitmap = frame;
+            return frame;
+        } catch (IllegalArgumentException e) {
+            options.inBitmap = null;
+            Bitmap frame = BitmapFactory.decodeByteArray(data, 0, length, options);
+            options.inBitmap = frame;
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.camera.classes;
+
+public class PublishedFrame {
+    private final long _version;
+    private final byte[] _data;
+    // set once the transport starts sending it
+    private volatile boolean _sent;
+
+    public PublishedFrame(long version, byte[] data) {
+        _version = version;
+        _data = data;
+    }
+
+    public long getVersion() {
+        return _version;
+    }
+
+    public byte[] getData() {
+        return _data;
+    }
+
+    public boolean isSent() {
+        return _sent;
+    }
+
+    public void markSent() {
+        _sent = true;
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.camera.classes;
+
+import java.nio.ByteBuffer;
+
+// what a receiver can use of a sender's video: the size of the tile it is drawn in, the frame rate worth
+// sending and how many pixels a second the receiver can decode. 0 means no limit, and is all an older
+// peer ever sends since it doesn't know about constraints
+public class ReceiveConstraints {
+    public static final ReceiveConstraints NONE = new ReceiveConstraints(0, 0, 0, 0);
+    // the budget goes over the wire in thousands of pixels, it never needs to be more exact
+    private static final int BUDGET_UNIT = 1000;
+
+    private final int _maxWidth;
+    private final int _maxHeight;
+    private final int _maxFps;
+    private final long _decodeBudget;
+
+    public ReceiveConstraints(int maxWidth, int maxHeight, int maxFps, long decodeBudget) {
+        this._maxWidth = maxWidth;
+        this._maxHeight = maxHeight;
+        this._maxFps = maxFps;
+        this._decodeBudget = decodeBudget;
+    }
+
+    // follows the layer byte of a subscribe
+    public void put(ByteBuffer buffer) {
+        WireFormat.putVarLong(buffer, _maxWidth);
+        WireFormat.putVarLong(buffer, _maxHeight);
+        WireFormat.putVarLong(buffer, _maxFps);
+        WireFormat.putVarLong(buffer, (_decodeBudget + BUDGET_UNIT - 1) / BUDGET_UNIT);
+    }
+
+    public static ReceiveConstraints read(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return NONE;
+        }
+        int maxWidth = (int) WireFormat.getVarLong(buffer);
+        int maxHeight = (int) WireFormat.getVarLong(buffer);
+        int maxFps = (int) WireFormat.getVarLong(buffer);
+        long decodeBudget = WireFormat.getVarLong(buffer) * BUDGET_UNIT;
+        if (maxWidth < 0 || maxHeight < 0 || maxFps < 0 || decodeBudget < 0) {
+            return NONE;
+        }
+        return new ReceiveConstraints(maxWidth, maxHeight, maxFps, decodeBudget);
+    }
+
+    public int getMaxWidth() {
+        return _maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return _maxHeight;
+    }
+
+    public int getMaxFps() {
+        return _maxFps;
+    }
+
+    public long getDecodeBudget() {
+        return _decodeBudget;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ReceiveConstraints)) return false;
+        ReceiveConstraints constraints = (ReceiveConstraints) other;
+        return _maxWidth == constraints._maxWidth && _maxHeight == constraints._maxHeight
+                && _maxFps == constraints._maxFps && _decodeBudget == constraints._decodeBudget;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((_maxWidth * 31 + _maxHeight) * 31 + _maxFps) * 31 + Long.hashCode(_decodeBudget);
+    }
+}
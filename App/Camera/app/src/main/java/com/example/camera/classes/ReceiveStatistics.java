@@ -0,0 +1,70 @@
+package com.example.camera.classes;
+
+import java.nio.ByteBuffer;
+
+public class ReceiveStatistics {
+    private static final float GRADIENT_WEIGHT = 0.1f;
+    private static final int GRADIENT_SCALE = 100; // reported in hundredths of a millisecond
+
+    private int _expectedFragments;
+    private int _receivedFragments;
+    private long _receivedBytes;
+    private long _intervalStart = System.currentTimeMillis();
+
+    private long _lastArrivalAt = -1;
+    private long _lastTimestamp;
+    private float _delayGradient;
+
+    public synchronized void onBytesReceived(int bytes) {
+        _receivedBytes += bytes;
+    }
+
+    // called once per frame when it completes or is given up on. fragments rebuilt from parity or resent after
+    // a nack count as lost, they are what the loss is there to size
+    public synchronized void onFrameEnded(int expectedFragments, int receivedFragments) {
+        _expectedFragments += Math.max(expectedFragments, receivedFragments);
+        _receivedFragments += receivedFragments;
+    }
+
+    // a growing gap between arrival spacing and send spacing means a queue is building up on the path
+    public synchronized void onFrameCompleted(long timestamp, long arrivedAt) {
+        if (_lastArrivalAt >= 0 && timestamp > _lastTimestamp) {
+            float delta = (arrivedAt - _lastArrivalAt) - (timestamp - _lastTimestamp);
+            _delayGradient += (delta - _delayGradient) * GRADIENT_WEIGHT;
+        }
+        _lastArrivalAt = arrivedAt;
+        _lastTimestamp = timestamp;
+    }
+
+    // writes loss, delay gradient and received bitrate since the last report, then starts a new interval
+    public synchronized void putReport(ByteBuffer buffer, long now) {
+        float loss = _expectedFragments > 0 ? 1f - (float) _receivedFragments / _expectedFragments : 0f;
+        long elapsed = Math.max(1, now - _intervalStart);
+
+        buffer.put((byte) Math.round(Math.max(0f, Math.min(1f, loss)) * 255));
+        WireFormat.putVarLong(buffer, WireFormat.zigZag(Math.round(_delayGradient * GRADIENT_SCALE)));
+        WireFormat.putVarLong(buffer, _receivedBytes * 8 * 1000 / elapsed);
+
+        _expectedFragments = 0;
+        _receivedFragments = 0;
+        _receivedBytes = 0;
+        _intervalStart = now;
+    }
+
+    public static float readLoss(ByteBuffer buffer) {
+        return (buffer.get() & 0xFF) / 255f;
+    }
+
+    public static float readDelayGradient(ByteBuffer buffer) {
+        return (float) WireFormat.unZigZag(WireFormat.getVarLong(buffer)) / GRADIENT_SCALE;
+    }
+
+    public synchronized void reset() {
+        _expectedFragments = 0;
+        _receivedFragments = 0;
+        _receivedBytes = 0;
+        _intervalStart = System.currentTimeMillis();
+        _lastArrivalAt = -1;
+        _delayGradient = 0;
+    }
+}
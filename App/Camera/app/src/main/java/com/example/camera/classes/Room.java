@@ -13,6 +13,8 @@ public class Room {
     private String _name;
     private String _creator;
     private Map<String, String> _participants;
+    private String _sfuIp;
+    private boolean _alwaysUseSfu;
 
     // for Firebase
     public Room() {
@@ -35,6 +37,8 @@ public class Room {
 
     public Room(Room room){
         this(room._id, room._name, room._creator, room.getParticipants());
+        this._sfuIp = room._sfuIp;
+        this._alwaysUseSfu = room._alwaysUseSfu;
     }
 
     public String getId() {
@@ -69,6 +73,24 @@ public class Room {
         this._participants = participants;
     }
 
+    // null when the room has no forwarding server and always runs as a mesh
+    public String getSfuIp() {
+        return _sfuIp;
+    }
+
+    public void setSfuIp(String sfuIp) {
+        this._sfuIp = sfuIp;
+    }
+
+    // otherwise the server is only used once the room grows past what a phone can upload to every peer
+    public boolean isAlwaysUseSfu() {
+        return _alwaysUseSfu;
+    }
+
+    public void setAlwaysUseSfu(boolean alwaysUseSfu) {
+        this._alwaysUseSfu = alwaysUseSfu;
+    }
+
     public static Room getConnectedRoom() {
         return _connectedRoom;
     }
@@ -0,0 +1,181 @@
+package com.example.camera.classes;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// keeps one sender's reference frame and patches the tiles of every delta frame into it in place
+public class TileDeltaDecoder {
+    private final FrameCodec[] _codecs = new FrameCodec[FrameCodecs.CODEC_COUNT];
+    private int[] _tileIndices = new int[0];
+    private int[] _mosaic = new int[0];
+    private int[] _reference = new int[0];
+    private int _width;
+    private int _height;
+    private long _sequence = -1;
+    private volatile int _targetWidth;
+    private volatile int _targetHeight;
+    // needs android, so it is only created once a plain frame shows up
+    private PlainFrameDecoder _plainDecoder;
+
+    // true once the reference holds the frame, false when the frame doesn't follow the last one applied
+    // and the sender has to be asked for a keyframe
+    public boolean decode(byte[] data, int length) {
+        // a plain jpeg comes from a sender without the tile codec, or from one sending to such a peer
+        if (length >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+            return decodePlain(data, length);
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            int type = buffer.get();
+            FrameCodec codec = getCodec(buffer.get() & 0xFF);
+            long sequence = WireFormat.getVarLong(buffer);
+            if (codec == null) {
+                return false;
+            }
+            return type == TileDeltaEncoder.TYPE_KEYFRAME
+                    ? applyKeyframe(buffer, codec, sequence)
+                    : applyDelta(buffer, codec, sequence);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // true for a frame that decodes on its own, a keyframe or a plain jpeg. everything queued before one is
+    // no longer needed once it is there
+    public static boolean isKeyframe(byte[] data, int length) {
+        if (length >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+            return true;
+        }
+        return length >= 1 && data[0] == TileDeltaEncoder.TYPE_KEYFRAME;
+    }
+
+    // argb, row by row, getWidth() pixels wide
+    public int[] getPixels() {
+        return _reference;
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    public int getHeight() {
+        return _height;
+    }
+
+    // plain frames are never patched, so they can be decoded no bigger than they are drawn. tile frames
+    // always keep the sender's size, later deltas are patched into them
+    public void setTargetSize(int width, int height) {
+        _targetWidth = width;
+        _targetHeight = height;
+    }
+
+    private boolean decodePlain(byte[] data, int length) {
+        if (_plainDecoder == null) {
+            _plainDecoder = new PlainFrameDecoder();
+        }
+        if (!_plainDecoder.decode(data, length, _targetWidth, _targetHeight)) {
+            return false;
+        }
+
+        resize(_plainDecoder.getWidth(), _plainDecoder.getHeight());
+        _plainDecoder.getPixels(_reference);
+        // a tile stream that starts again later has to start from a keyframe
+        _sequence = -1;
+        return true;
+    }
+
+    private boolean applyKeyframe(ByteBuffer buffer, FrameCodec codec, long sequence) {
+        int width = (int) WireFormat.getVarLong(buffer);
+        int height = (int) WireFormat.getVarLong(buffer);
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE / 4) {
+            return false;
+        }
+
+        resize(width, height);
+        if (!codec.decode(buffer.array(), buffer.position(), buffer.remaining(), _reference, 0, width, width, height)) {
+            _sequence = -1;
+            return false;
+        }
+        _sequence = sequence;
+        return true;
+    }
+
+    private boolean applyDelta(ByteBuffer buffer, FrameCodec codec, long sequence) {
+        long base = WireFormat.getVarLong(buffer);
+        int width = (int) WireFormat.getVarLong(buffer);
+        int height = (int) WireFormat.getVarLong(buffer);
+        if (_sequence < 0 || base != _sequence || width != _width || height != _height) {
+            return false;
+        }
+
+        int changed = (int) WireFormat.getVarLong(buffer);
+        int tileSize = TileDeltaEncoder.TILE_SIZE;
+        int tileColumns = (width + tileSize - 1) / tileSize;
+        int tileCount = tileColumns * ((height + tileSize - 1) / tileSize);
+        if (changed < 0 || changed > tileCount) {
+            return false;
+        }
+        if (_tileIndices.length < changed) {
+            _tileIndices = new int[tileCount];
+        }
+
+        int previous = -1;
+        for (int i = 0; i < changed; i++) {
+            previous += (int) WireFormat.getVarLong(buffer) + 1;
+            if (previous < 0 || previous >= tileCount) return false;
+            _tileIndices[i] = previous;
+        }
+
+        if (changed > 0) {
+            int columns = Math.min(changed, TileDeltaEncoder.MOSAIC_COLUMNS);
+            int stride = columns * tileSize;
+            int mosaicHeight = ((changed + columns - 1) / columns) * tileSize;
+            if (_mosaic.length < stride * mosaicHeight) {
+                _mosaic = new int[stride * mosaicHeight];
+            }
+            // a tile is only patched in once the whole mosaic decoded, so a bad frame leaves the reference alone
+            if (!codec.decode(buffer.array(), buffer.position(), buffer.remaining(), _mosaic, 0, stride, stride, mosaicHeight)) {
+                return false;
+            }
+
+            for (int i = 0; i < changed; i++) {
+                int left = (_tileIndices[i] % tileColumns) * tileSize;
+                int top = (_tileIndices[i] / tileColumns) * tileSize;
+                int tileWidth = Math.min(tileSize, width - left);
+                int tileHeight = Math.min(tileSize, height - top);
+
+                int source = (i / columns) * tileSize * stride + (i % columns) * tileSize;
+                int target = top * width + left;
+                for (int y = 0; y < tileHeight; y++) {
+                    System.arraycopy(_mosaic, source + y * stride, _reference, target + y * width, tileWidth);
+                }
+            }
+        }
+
+        _sequence = sequence;
+        return true;
+    }
+
+    private FrameCodec getCodec(int codecId) {
+        if (codecId <= FrameCodecs.CODEC_PLAIN || codecId >= _codecs.length) {
+            return null;
+        }
+        if (_codecs[codecId] == null) {
+            _codecs[codecId] = FrameCodecs.create(codecId);
+        }
+        return _codecs[codecId];
+    }
+
+    private void resize(int width, int height) {
+        if (_reference.length < width * height) {
+            _reference = new int[width * height];
+        }
+        _width = width;
+        _height = height;
+    }
+
+    public void clear() {
+        _sequence = -1;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.camera.classes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+// splits every frame into tiles and only sends the ones that changed since they were last sent.
+// a keyframe carries the whole picture, a delta frame carries the changed tiles packed side by side into
+// one image so they share a single header. tiles line up with jpeg's 16 pixel blocks, so packed tiles
+// never bleed into each other
+public class TileDeltaEncoder {
+    public static final int TYPE_KEYFRAME = 1;
+    public static final int TYPE_DELTA = 2;
+    public static final int TILE_SIZE = 32;
+    public static final int MOSAIC_COLUMNS = 16;
+
+    private static final int KEYFRAME_INTERVAL_MS = 3000;
+    // past this share of changed tiles a keyframe costs about the same and depends on nothing
+    private static final float KEYFRAME_TILE_SHARE = 0.6f;
+    // every other pixel of every other row is compared, shifted by one on alternate rows so no column is
+    // skipped entirely. a quarter of the work, and still catches a thin edge moving
+    private static final int SAMPLE_STEP = 2;
+    // summed over r, g and b. camera noise stays under it, an edge moving through the pixel doesn't
+    private static final int PIXEL_THRESHOLD = 48;
+    private static final int CHANGED_PIXELS = 2;
+    // noise never moves a pixel this far, one is enough. catches the corner of an edge that only clips a tile
+    private static final int STRONG_PIXEL_THRESHOLD = 3 * PIXEL_THRESHOLD;
+    // a slow change of light moves every pixel a little, which the per pixel threshold alone would miss
+    private static final int MEAN_THRESHOLD = 12;
+    private static final int MAX_HEADER_SIZE = 2 + 5 * 5;
+
+    private final ByteBuffer _header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+    private final FrameCodec[] _codecs = new FrameCodec[FrameCodecs.CODEC_COUNT];
+    private int _width;
+    private int _height;
+    private int _columns;
+    // what the receiver has, tile by tile, as of the last frame sent
+    private int[] _reference = new int[0];
+    private int[] _changedTiles = new int[0];
+    private int[] _mosaic = new int[0];
+    private int _sequence;
+    private long _lastKeyframeAt;
+    private volatile boolean _keyframeRequested = true;
+
+    // the next frame is sent whole, for a receiver that lost track or just joined
+    public void requestKeyframe() {
+        _keyframeRequested = true;
+    }
+
+    public boolean isKeyframeRequested() {
+        return _keyframeRequested;
+    }
+
+    // pixels are argb, row by row. the codec only decides how the pixels that do go out are compressed,
+    // the receiver's reference is the same whichever one was used
+    public byte[] encode(int[] pixels, int width, int height, int codecId, int quality, long now) {
+        if (width != _width || height != _height) {
+            resize(width, height);
+        }
+        FrameCodec codec = getCodec(codecId);
+
+        int changed = findChangedTiles(pixels);
+        boolean keyframe = _keyframeRequested || now - _lastKeyframeAt >= KEYFRAME_INTERVAL_MS
+                || changed > _changedTiles.length * KEYFRAME_TILE_SHARE;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int base = _sequence;
+        _sequence++;
+        _header.clear();
+
+        if (keyframe) {
+            _keyframeRequested = false;
+            _lastKeyframeAt = now;
+            System.arraycopy(pixels, 0, _reference, 0, width * height);
+
+            _header.put((byte) TYPE_KEYFRAME);
+            _header.put((byte) codec.getId());
+            WireFormat.putVarLong(_header, _sequence);
+            WireFormat.putVarLong(_header, width);
+            WireFormat.putVarLong(_header, height);
+            out.write(_header.array(), 0, _header.position());
+            codec.encode(pixels, 0, width, width, height, quality, out);
+            return out.toByteArray();
+        }
+
+        _header.put((byte) TYPE_DELTA);
+        _header.put((byte) codec.getId());
+        WireFormat.putVarLong(_header, _sequence);
+        WireFormat.putVarLong(_header, base);
+        WireFormat.putVarLong(_header, width);
+        WireFormat.putVarLong(_header, height);
+        WireFormat.putVarLong(_header, changed);
+        out.write(_header.array(), 0, _header.position());
+
+        // tile indices go as gaps from the one before, mostly a single byte each
+        int previous = -1;
+        for (int i = 0; i < changed; i++) {
+            _header.clear();
+            WireFormat.putVarLong(_header, _changedTiles[i] - previous - 1);
+            out.write(_header.array(), 0, _header.position());
+            previous = _changedTiles[i];
+        }
+
+        if (changed > 0) {
+            int columns = Math.min(changed, MOSAIC_COLUMNS);
+            int rows = (changed + columns - 1) / columns;
+            packTiles(pixels, changed, columns);
+            codec.encode(_mosaic, 0, columns * TILE_SIZE, columns * TILE_SIZE, rows * TILE_SIZE, quality, out);
+        }
+        return out.toByteArray();
+    }
+
+    private FrameCodec getCodec(int codecId) {
+        if (codecId <= FrameCodecs.CODEC_PLAIN || codecId >= _codecs.length) {
+            throw new IllegalArgumentException("Not a tile codec: " + codecId);
+        }
+        if (_codecs[codecId] == null) {
+            _codecs[codecId] = FrameCodecs.create(codecId);
+        }
+        return _codecs[codecId];
+    }
+
+    private void resize(int width, int height) {
+        _width = width;
+        _height = height;
+        _columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        _reference = new int[width * height];
+        _changedTiles = new int[_columns * rows];
+        _keyframeRequested = true;
+    }
+
+    // fills _changedTiles with the tiles that drifted too far from what was last sent, returns how many
+    private int findChangedTiles(int[] pixels) {
+        int changed = 0;
+        for (int tile = 0; tile < _changedTiles.length; tile++) {
+            int left = (tile % _columns) * TILE_SIZE;
+            int top = (tile / _columns) * TILE_SIZE;
+            int right = Math.min(left + TILE_SIZE, _width);
+            int bottom = Math.min(top + TILE_SIZE, _height);
+
+            int changedPixels = 0;
+            boolean strongChange = false;
+            long totalDiff = 0;
+            int samples = 0;
+            for (int y = top; y < bottom; y += SAMPLE_STEP) {
+                int row = y * _width;
+                for (int x = left + ((y / SAMPLE_STEP) & 1); x < right; x += SAMPLE_STEP) {
+                    int diff = pixelDiff(pixels[row + x], _reference[row + x]);
+                    totalDiff += diff;
+                    samples++;
+                    if (diff > PIXEL_THRESHOLD) changedPixels++;
+                    if (diff > STRONG_PIXEL_THRESHOLD) strongChange = true;
+                }
+            }
+
+            if (strongChange || changedPixels >= CHANGED_PIXELS || totalDiff > (long) MEAN_THRESHOLD * samples) {
+                _changedTiles[changed++] = tile;
+            }
+        }
+        return changed;
+    }
+
+    private static int pixelDiff(int a, int b) {
+        return Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF))
+                + Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF))
+                + Math.abs((a & 0xFF) - (b & 0xFF));
+    }
+
+    // copies the changed tiles into a grid, row by row in index order, and marks them as sent.
+    // tiles on the right and bottom edge may be smaller, their cell is simply left partly stale
+    private void packTiles(int[] pixels, int changed, int columns) {
+        int stride = columns * TILE_SIZE;
+        int size = stride * ((changed + columns - 1) / columns) * TILE_SIZE;
+        if (_mosaic.length < size) {
+            _mosaic = new int[size];
+        }
+
+        for (int i = 0; i < changed; i++) {
+            int tile = _changedTiles[i];
+            int left = (tile % _columns) * TILE_SIZE;
+            int top = (tile / _columns) * TILE_SIZE;
+            int width = Math.min(TILE_SIZE, _width - left);
+            int height = Math.min(TILE_SIZE, _height - top);
+
+            int source = top * _width + left;
+            int target = (i / columns) * TILE_SIZE * stride + (i % columns) * TILE_SIZE;
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, source + y * _width, _mosaic, target + y * stride, width);
+                System.arraycopy(pixels, source + y * _width, _reference, source + y * _width, width);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.camera.classes;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+// draws every participant's newest frame into its tile's surface on its own thread, once per vsync at
+// most, with a hardware canvas. frames come straight from the decode workers, so the ui thread and the
+// recycler view only see participants joining and leaving
+public class TileRenderer implements Choreographer.FrameCallback {
+    private final HandlerThread _thread = new HandlerThread("TileRenderer");
+    private final Handler _handler;
+    private Choreographer _choreographer;
+    private final ConcurrentHashMap<String, Tile> _tiles = new ConcurrentHashMap<>();
+    private final AtomicBoolean _frameScheduled = new AtomicBoolean();
+    private final Paint _paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final BiConsumer<String, Bitmap> _onFrameReleased;
+    private final OnTileResized _onTileResized;
+    private volatile boolean _shutdown;
+
+    public interface OnTileResized {
+        void onTileResized(String username, int width, int height);
+    }
+
+    private class Tile implements SurfaceHolder.Callback {
+        final String username;
+        // held while drawing, so the surface and the frame being drawn can't go away under it. the tile lock
+        // only covers handing frames over, so a decoder never waits on a draw
+        final Object drawLock = new Object();
+        // read by the renderer without the tile lock, to check nothing changed while it waited to draw
+        volatile SurfaceHolder holder;
+        volatile boolean surfaceValid;
+        int surfaceWidth;
+        int surfaceHeight;
+        // waiting to be drawn, and the one on screen, kept to redraw a surface that was recreated
+        Bitmap pending;
+        Bitmap shown;
+        boolean dirty;
+        // rebuilt only when the frame or the surface changes size
+        final Matrix matrix = new Matrix();
+        int matrixFrameWidth;
+        int matrixFrameHeight;
+        int matrixSurfaceWidth;
+        int matrixSurfaceHeight;
+
+        Tile(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            synchronized (this) {
+                surfaceValid = true;
+                surfaceWidth = width;
+                surfaceHeight = height;
+                dirty = true;
+            }
+            _onTileResized.onTileResized(username, width, height);
+            scheduleFrame();
+        }
+
+        // blocks until a draw in progress is done, the surface is gone once this returns
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+            synchronized (drawLock) {
+                surfaceValid = false;
+            }
+        }
+    }
+
+    // frames given to submit() are handed back to onFrameReleased once they won't be drawn again
+    public TileRenderer(BiConsumer<String, Bitmap> onFrameReleased, OnTileResized onTileResized) {
+        this._onFrameReleased = onFrameReleased;
+        this._onTileResized = onTileResized;
+        _thread.start();
+        _handler = new Handler(_thread.getLooper());
+        // a choreographer belongs to the looper it is created on
+        _handler.post(() -> _choreographer = Choreographer.getInstance());
+    }
+
+    // called from the ui thread whenever the recycler view binds a holder to a participant
+    public void attach(String username, SurfaceHolder holder) {
+        for (Tile tile : _tiles.values()) {
+            if (tile.holder == holder && !tile.username.equals(username)) {
+                detachHolder(tile);
+            }
+        }
+
+        Tile tile = getTile(username);
+        if (tile.holder == holder) return;
+        detachHolder(tile);
+
+        synchronized (tile) {
+            tile.holder = holder;
+            tile.surfaceValid = holder.getSurface() != null && holder.getSurface().isValid();
+            tile.surfaceWidth = holder.getSurfaceFrame().width();
+            tile.surfaceHeight = holder.getSurfaceFrame().height();
+            tile.dirty = true;
+        }
+        holder.addCallback(tile);
+        if (tile.surfaceWidth > 0 && tile.surfaceHeight > 0) {
+            _onTileResized.onTileResized(username, tile.surfaceWidth, tile.surfaceHeight);
+        }
+        scheduleFrame();
+    }
+
+    private void detachHolder(Tile tile) {
+        SurfaceHolder holder;
+        synchronized (tile) {
+            holder = tile.holder;
+            tile.holder = null;
+            tile.surfaceValid = false;
+        }
+        if (holder != null) {
+            holder.removeCallback(tile);
+        }
+    }
+
+    private Tile getTile(String username) {
+        Tile tile = _tiles.get(username);
+        if (tile == null) {
+            Tile created = new Tile(username);
+            tile = _tiles.putIfAbsent(username, created);
+            if (tile == null) tile = created;
+        }
+        return tile;
+    }
+
+    // any thread. a frame not drawn yet is replaced and handed back right away
+    public void submit(String username, Bitmap frame) {
+        Tile tile = _tiles.get(username);
+        if (tile == null || _shutdown) {
+            _onFrameReleased.accept(username, frame);
+            return;
+        }
+
+        Bitmap replaced;
+        synchronized (tile) {
+            replaced = tile.pending;
+            tile.pending = frame;
+            tile.dirty = true;
+        }
+        if (replaced != null) {
+            _onFrameReleased.accept(username, replaced);
+        }
+        scheduleFrame();
+    }
+
+    // for a participant that is no longer in the room
+    public void remove(String username) {
+        Tile tile = _tiles.remove(username);
+        if (tile == null) return;
+
+        detachHolder(tile);
+        Bitmap pending;
+        Bitmap shown;
+        // the frame on screen may still be being drawn
+        synchronized (tile.drawLock) {
+            synchronized (tile) {
+                pending = tile.pending;
+                shown = tile.shown;
+                tile.pending = null;
+                tile.shown = null;
+            }
+        }
+        if (pending != null) _onFrameReleased.accept(username, pending);
+        if (shown != null) _onFrameReleased.accept(username, shown);
+    }
+
+    // creates the tile ahead of its first frame, frames for unknown participants are dropped
+    public void add(String username) {
+        getTile(username);
+    }
+
+    private void scheduleFrame() {
+        if (!_shutdown && _frameScheduled.compareAndSet(false, true)) {
+            _handler.post(() -> {
+                if (_choreographer != null && !_shutdown) {
+                    _choreographer.postFrameCallback(this);
+                } else {
+                    _frameScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        _frameScheduled.set(false);
+        for (Tile tile : _tiles.values()) {
+            draw(tile);
+        }
+    }
+
+    // the frame and the surface are picked under the tile lock, the drawing happens outside it
+    private void draw(Tile tile) {
+        Bitmap released = null;
+        Bitmap shown;
+        SurfaceHolder holder;
+        int surfaceWidth;
+        int surfaceHeight;
+        synchronized (tile) {
+            if (!tile.dirty || !tile.surfaceValid || tile.holder == null) return;
+            tile.dirty = false;
+            if (tile.pending != null) {
+                released = tile.shown;
+                tile.shown = tile.pending;
+                tile.pending = null;
+            }
+            shown = tile.shown;
+            holder = tile.holder;
+            surfaceWidth = tile.surfaceWidth;
+            surfaceHeight = tile.surfaceHeight;
+        }
+
+        synchronized (tile.drawLock) {
+            // the surface went away or the tile was moved or removed in between
+            if (tile.surfaceValid && tile.holder == holder) {
+                drawFrame(tile, holder.getSurface(), shown, surfaceWidth, surfaceHeight);
+            }
+        }
+        if (released != null) {
+            _onFrameReleased.accept(tile.username, released);
+        }
+    }
+
+    private void drawFrame(Tile tile, Surface surface, Bitmap frame, int surfaceWidth, int surfaceHeight) {
+        Canvas canvas;
+        try {
+            canvas = surface.lockHardwareCanvas();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // released between the check and the lock, surfaceChanged brings the next one
+            return;
+        }
+        try {
+            canvas.drawColor(Color.BLACK);
+            if (frame != null) {
+                updateMatrix(tile, frame.getWidth(), frame.getHeight(), surfaceWidth, surfaceHeight);
+                canvas.drawBitmap(frame, tile.matrix, _paint);
+            }
+        } finally {
+            surface.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    // fits the frame inside the surface, centered, keeping its aspect ratio. only the renderer thread uses it
+    private static void updateMatrix(Tile tile, int frameWidth, int frameHeight, int surfaceWidth, int surfaceHeight) {
+        if (frameWidth == tile.matrixFrameWidth && frameHeight == tile.matrixFrameHeight
+                && surfaceWidth == tile.matrixSurfaceWidth && surfaceHeight == tile.matrixSurfaceHeight) {
+            return;
+        }
+        tile.matrixFrameWidth = frameWidth;
+        tile.matrixFrameHeight = frameHeight;
+        tile.matrixSurfaceWidth = surfaceWidth;
+        tile.matrixSurfaceHeight = surfaceHeight;
+
+        float scale = Math.min((float) surfaceWidth / frameWidth, (float) surfaceHeight / frameHeight);
+        tile.matrix.setScale(scale, scale);
+        tile.matrix.postTranslate((surfaceWidth - frameWidth * scale) / 2f, (surfaceHeight - frameHeight * scale) / 2f);
+    }
+
+    public void shutdown() {
+        _shutdown = true;
+        for (String username : _tiles.keySet()) {
+            remove(username);
+        }
+        _handler.post(() -> {
+            if (_choreographer != null) _choreographer.removeFrameCallback(this);
+            _thread.quit();
+        });
+    }
+}
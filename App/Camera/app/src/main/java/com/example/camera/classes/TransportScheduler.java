@@ -0,0 +1,223 @@
+package com.example.camera.classes;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// one thread that sleeps in select() until a channel is readable, a task is posted or the next timer is due,
+// so an idle call costs nothing and work starts the moment it can
+public class TransportScheduler {
+    private static final String TAG = "TransportScheduler";
+    private static final int STOP_TIMEOUT_MS = 500;
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private final String _name;
+    private final Selector _selector;
+    private final ConcurrentLinkedQueue<Task> _tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean _wakeupPending = new AtomicBoolean();
+    // only touched by the loop thread
+    private final PriorityQueue<Timer> _timers = new PriorityQueue<>();
+    private long _timerSequence;
+
+    private Thread _thread;
+    private volatile boolean _isRunning;
+
+    public TransportScheduler(String name) throws IOException {
+        this._name = name;
+        this._selector = Selector.open();
+    }
+
+    public void start() {
+        _isRunning = true;
+        _thread = new Thread(this::loop);
+        _thread.setName(_name);
+        _thread.setDaemon(true);
+        _thread.setPriority(Thread.MAX_PRIORITY);
+        _thread.start();
+    }
+
+    // the selector and every registered channel are closed once the loop exits.
+    // waits for that unless called from the loop itself, so nothing it produces arrives after this returns
+    public void stop() {
+        _isRunning = false;
+        _selector.wakeup();
+
+        if (_thread != null && !isLoopThread()) {
+            try {
+                _thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isLoopThread() {
+        return Thread.currentThread() == _thread;
+    }
+
+    // safe from any thread, the task runs on the loop thread in the order it was posted
+    public void execute(Task task) {
+        _tasks.offer(task);
+        if (!isLoopThread() && _wakeupPending.compareAndSet(false, true)) {
+            _selector.wakeup();
+        }
+    }
+
+    // loop thread only
+    public void register(SelectableChannel channel, int ops, Task onReady) throws ClosedChannelException {
+        channel.register(_selector, ops, onReady);
+    }
+
+    public Timer schedule(Task task, long delayMs) {
+        return addTimer(new Timer(task, now() + Math.max(0, delayMs), 0));
+    }
+
+    // a run that takes longer than the period delays the next one instead of piling up
+    public Timer scheduleRepeating(Task task, long initialDelayMs, long periodMs) {
+        return addTimer(new Timer(task, now() + Math.max(0, initialDelayMs), periodMs));
+    }
+
+    // timers are only ever touched by the loop thread, anyone else hands them over as a task
+    private Timer addTimer(Timer timer) {
+        if (!isLoopThread()) {
+            execute(() -> addTimer(timer));
+            return timer;
+        }
+
+        timer.sequence = _timerSequence++;
+        _timers.add(timer);
+        return timer;
+    }
+
+    private void loop() {
+        try {
+            while (_isRunning) {
+                _wakeupPending.set(false);
+                runTasks();
+                long timeout = runDueTimers();
+
+                if (!_tasks.isEmpty()) {
+                    _selector.selectNow();
+                } else if (timeout == Long.MAX_VALUE) {
+                    _selector.select();
+                } else {
+                    _selector.select(Math.max(1, timeout));
+                }
+
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        run((Task) key.attachment());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, _name + " loop error", e);
+        } finally {
+            close();
+        }
+    }
+
+    private void runTasks() {
+        Task task;
+        while ((task = _tasks.poll()) != null) {
+            run(task);
+        }
+    }
+
+    // returns how long until the next timer is due
+    private long runDueTimers() {
+        long now = now();
+        Timer timer;
+        while ((timer = _timers.peek()) != null) {
+            if (timer.cancelled) {
+                _timers.poll();
+                continue;
+            }
+            if (timer.dueAt > now) {
+                return timer.dueAt - now;
+            }
+
+            _timers.poll();
+            run(timer.task);
+            if (timer.periodMs > 0 && !timer.cancelled) {
+                timer.dueAt = now() + timer.periodMs;
+                addTimer(timer);
+            }
+            now = now();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void run(Task task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            if (_isRunning) {
+                Log.e(TAG, _name + " task error", e);
+            }
+        }
+    }
+
+    private void close() {
+        for (SelectionKey key : _selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing channel", e);
+            }
+        }
+        try {
+            _selector.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing selector", e);
+        }
+        _tasks.clear();
+        _timers.clear();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public static class Timer implements Comparable<Timer> {
+        private final Task task;
+        private final long periodMs;
+        private long dueAt;
+        private long sequence;
+        private volatile boolean cancelled;
+
+        private Timer(Task task, long dueAt, long periodMs) {
+            this.task = task;
+            this.dueAt = dueAt;
+            this.periodMs = periodMs;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        // timers due at the same moment run in the order they were scheduled
+        @Override
+        public int compareTo(Timer other) {
+            if (dueAt != other.dueAt) {
+                return Long.compare(dueAt, other.dueAt);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
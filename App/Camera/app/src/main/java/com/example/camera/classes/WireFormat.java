@@ -0,0 +1,167 @@
+package com.example.camera.classes;
+
+import com.example.camera.utils.ChecksumUtils;
+
+import java.nio.ByteBuffer;
+
+public class WireFormat {
+    public static final int VERSION_LEGACY = 1;
+    public static final int VERSION_COMPACT = 2;
+    public static final int CURRENT_VERSION = VERSION_COMPACT;
+
+    // legacy header: 8 byte zero padded username, millisecond timestamp, sequence and total as ints
+    public static final int USERNAME_SIZE = 8;
+    public static final int LEGACY_HEADER_SIZE = USERNAME_SIZE + Long.BYTES + Integer.BYTES * 2;
+    public static final int LEGACY_PACKET_SIZE = 40000;
+    public static final int LEGACY_FRAGMENT_SIZE = LEGACY_PACKET_SIZE - LEGACY_HEADER_SIZE;
+
+    // compact packets start with 11111vvv, a byte that never starts a utf-8 username
+    public static final int VERSION_MARKER = 0xF8;
+    public static final int VERSION_MASK = 0x07;
+
+    // second byte of a compact packet
+    public static final int FLAG_CONTROL = 0x01;
+    public static final int STREAM_SHIFT = 1;
+    public static final int STREAM_MASK = 0x07;
+    public static final int FLAG_PARITY = 0x10;
+    // set on fragments resent after a nack, so the receiver can leave them out of the loss it reports
+    public static final int FLAG_RETRANSMIT = 0x20;
+    public static final int FLAG_CHECKSUM = 0x80;
+
+    // the stream id of a video packet is its simulcast layer, 0 being the full frame
+    public static final int STREAM_VIDEO = 0;
+
+    public static final int CONTROL_HELLO = 1;
+    public static final int CONTROL_NACK = 2;
+    public static final int CONTROL_REPORT = 3;
+    public static final int CONTROL_PING = 4;
+    public static final int CONTROL_PONG = 5;
+    public static final int CONTROL_PROBE = 6;
+    public static final int CONTROL_PROBE_ACK = 7;
+    public static final int CONTROL_JOIN = 8;
+    public static final int CONTROL_JOIN_ACK = 9;
+    public static final int CONTROL_SUBSCRIBE = 10;
+    public static final int CONTROL_KEYFRAME_REQUEST = 11;
+    public static final int HELLO_REPLY_REQUESTED = 0x01;
+    public static final int HELLO_ID_CONFLICT = 0x02;
+    public static final int JOIN_ID_CONFLICT = 0x01;
+    // sent instead of a layer when we aren't showing the peer, it stops sending to us until we subscribe again
+    public static final int SUBSCRIBE_PAUSED = 0xFF;
+
+    public static final int CHECKSUM_SIZE = 4;
+    public static final int MAX_SENDER_ID = 0x3FFF; // largest id that fits a two byte varint
+    // reserved for the forwarding server, peers pick their ids below it
+    public static final int SFU_SENDER_ID = MAX_SENDER_ID;
+    public static final int MAX_ROOM_ID_SIZE = 64;
+    public static final int MAX_COMPACT_HEADER_SIZE = 2 + 3 + 10 + 10 + 5 * 5 + CHECKSUM_SIZE;
+
+    // control header, the nacked sender's id, frame id, range count and up to 32 start and length pairs
+    public static final int MAX_NACK_SIZE = 2 + 3 + 1 + 3 + 10 + 1 + 32 * 10 + CHECKSUM_SIZE;
+
+    // a hello must stay shorter than the legacy header, so old peers fail to parse it and drop it.
+    // the codecs byte comes last, peers that predate it simply stop reading before it
+    public static final int HELLO_SIZE = 2 + 3 + 3 + USERNAME_SIZE + 1 + CHECKSUM_SIZE;
+
+    // the sender writes the username as 8 zero padded bytes, so they fit exactly in a long
+    public static long packUsername(String username) {
+        byte[] bytes = username.getBytes();
+        long key = 0;
+        for (int i = 0; i < USERNAME_SIZE; i++) {
+            key = (key << 8) | (i < bytes.length ? bytes[i] & 0xFF : 0);
+        }
+        return key;
+    }
+
+    public static void putLegacyHeader(ByteBuffer buffer, long usernameKey, long timestamp, int sequence, int total) {
+        buffer.putLong(usernameKey);
+        buffer.putLong(timestamp);
+        buffer.putInt(sequence);
+        buffer.putInt(total);
+    }
+
+    public static void putCompactHeader(ByteBuffer buffer, int streamId, boolean checksum, int senderId,
+                                        long frameSequence, long timestamp, int index, int total, int fragmentSize) {
+        putPrefix(buffer, (streamId & STREAM_MASK) << STREAM_SHIFT, checksum, senderId);
+        putVarLong(buffer, frameSequence);
+        putVarLong(buffer, timestamp);
+        putVarLong(buffer, index);
+        putVarLong(buffer, total);
+        putVarLong(buffer, fragmentSize);
+    }
+
+    // parity fragments also carry the parity count and the frame length, to trim a rebuilt last fragment
+    public static void putParityHeader(ByteBuffer buffer, int streamId, boolean checksum, int senderId, long frameSequence,
+                                       long timestamp, int index, int total, int fragmentSize, int parityCount, int frameLength) {
+        putPrefix(buffer, FLAG_PARITY | (streamId & STREAM_MASK) << STREAM_SHIFT, checksum, senderId);
+        putVarLong(buffer, frameSequence);
+        putVarLong(buffer, timestamp);
+        putVarLong(buffer, index);
+        putVarLong(buffer, total);
+        putVarLong(buffer, fragmentSize);
+        putVarLong(buffer, parityCount);
+        putVarLong(buffer, frameLength);
+    }
+
+    public static void putControlHeader(ByteBuffer buffer, boolean checksum, int senderId, int controlType) {
+        putPrefix(buffer, FLAG_CONTROL, checksum, senderId);
+        buffer.put((byte) controlType);
+    }
+
+    public static void putHello(ByteBuffer buffer, boolean checksum, int senderId, long usernameKey, int helloFlags, int codecs) {
+        putControlHeader(buffer, checksum, senderId, CONTROL_HELLO);
+        buffer.put((byte) CURRENT_VERSION);
+        buffer.put((byte) helloFlags);
+        buffer.putLong(usernameKey);
+        buffer.put((byte) codecs);
+    }
+
+    // marks a copy of a sent data packet as a retransmit. the checksum covers the flags, so it is redone
+    public static void markRetransmit(ByteBuffer packet) {
+        int flags = packet.get(1) | FLAG_RETRANSMIT;
+        packet.put(1, (byte) flags);
+        if ((flags & FLAG_CHECKSUM) != 0) {
+            int end = packet.limit() - CHECKSUM_SIZE;
+            packet.putInt(end, ChecksumUtils.crc32c(packet, 0, end));
+        }
+    }
+
+    // appends the crc32c of everything written so far, the checksum flag must already be in the header
+    public static void putChecksum(ByteBuffer buffer, int start) {
+        buffer.putInt(ChecksumUtils.crc32c(buffer, start, buffer.position()));
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // returns -1 for a varint longer than a long can hold
+    public static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static void putPrefix(ByteBuffer buffer, int flags, boolean checksum, int senderId) {
+        buffer.put((byte) (VERSION_MARKER | CURRENT_VERSION));
+        buffer.put((byte) (checksum ? flags | FLAG_CHECKSUM : flags));
+        putVarLong(buffer, senderId);
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.camera.classes;
+
+import androidx.camera.core.ImageProxy;
+
+import java.nio.ByteBuffer;
+
+// turns camera frames into the argb pixels the encoders take. the planes are read once per frame, row by
+// row with their own row and pixel strides, and every simulcast layer is converted and scaled from those
+// copies in one pass. all buffers are kept between frames and only grow when the camera size changes
+public class YuvFrameReader {
+    private byte[] _y = new byte[0];
+    private byte[] _u = new byte[0];
+    private byte[] _v = new byte[0];
+    private byte[] _row = new byte[0];
+    private int _width;
+    private int _height;
+
+    private final int[][] _pixels = new int[EncoderSettings.LAYER_COUNT][];
+    private final int[] _widths = new int[EncoderSettings.LAYER_COUNT];
+    private final int[] _heights = new int[EncoderSettings.LAYER_COUNT];
+    // source column per output column, rebuilt only when a layer's size changes
+    private final int[][] _columnMaps = new int[EncoderSettings.LAYER_COUNT][];
+    private final int[] _mappedFrom = new int[EncoderSettings.LAYER_COUNT];
+
+    // copies the planes out, the image can be closed right after
+    public void read(ImageProxy image) {
+        ImageProxy.PlaneProxy[] planes = image.getPlanes();
+        read(image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride());
+    }
+
+    // yuv 420 with any strides. u and v share their strides, which yuv_420_888 guarantees
+    public void read(int width, int height, ByteBuffer y, int yRowStride, int yPixelStride,
+                     ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        if (_y.length < width * height) _y = new byte[width * height];
+        if (_u.length < chromaWidth * chromaHeight) {
+            _u = new byte[chromaWidth * chromaHeight];
+            _v = new byte[chromaWidth * chromaHeight];
+        }
+        _width = width;
+        _height = height;
+
+        readPlane(y, yRowStride, yPixelStride, width, height, _y);
+        readPlane(u, uvRowStride, uvPixelStride, chromaWidth, chromaHeight, _u);
+        readPlane(v, uvRowStride, uvPixelStride, chromaWidth, chromaHeight, _v);
+    }
+
+    // a tightly packed plane copies row by row straight into place, an interleaved one goes through _row
+    private void readPlane(ByteBuffer plane, int rowStride, int pixelStride, int width, int height, byte[] target) {
+        int start = plane.position();
+        // the last row may end right after its last pixel, without the padding of the others
+        int rowLength = (width - 1) * pixelStride + 1;
+        if (pixelStride != 1 && _row.length < rowLength) {
+            _row = new byte[rowLength];
+        }
+
+        for (int row = 0; row < height; row++) {
+            plane.position(start + row * rowStride);
+            if (pixelStride == 1) {
+                plane.get(target, row * width, width);
+                continue;
+            }
+
+            plane.get(_row, 0, rowLength);
+            int index = row * width;
+            for (int x = 0, source = 0; x < width; x++, source += pixelStride) {
+                target[index + x] = _row[source];
+            }
+        }
+        plane.position(start);
+    }
+
+    // converts the last frame read into a layer's buffer, scale is the share of the camera width it keeps
+    public int[] convert(int layer, float scale) {
+        int width = Math.max(1, Math.round(_width * scale));
+        int height = Math.max(1, Math.round(_height * scale));
+        if (_pixels[layer] == null || _pixels[layer].length < width * height) {
+            _pixels[layer] = new int[width * height];
+        }
+        if (_columnMaps[layer] == null || _columnMaps[layer].length != width || _mappedFrom[layer] != _width) {
+            _columnMaps[layer] = new int[width];
+            _mappedFrom[layer] = _width;
+            for (int x = 0; x < width; x++) {
+                _columnMaps[layer][x] = x * _width / width;
+            }
+        }
+        _widths[layer] = width;
+        _heights[layer] = height;
+
+        int[] pixels = _pixels[layer];
+        int[] columns = _columnMaps[layer];
+        int chromaWidth = (_width + 1) / 2;
+        // shrinking by half or more averages a 2x2 block of luma, sampling one pixel would alias
+        boolean average = width * 2 <= _width && height * 2 <= _height;
+        for (int row = 0; row < height; row++) {
+            int sourceRow = row * _height / height;
+            int luma = sourceRow * _width;
+            int chroma = (sourceRow / 2) * chromaWidth;
+            int target = row * width;
+            for (int x = 0; x < width; x++) {
+                int column = columns[x];
+                int yValue;
+                if (average) {
+                    yValue = ((_y[luma + column] & 0xFF) + (_y[luma + column + 1] & 0xFF)
+                            + (_y[luma + _width + column] & 0xFF) + (_y[luma + _width + column + 1] & 0xFF) + 2) >> 2;
+                } else {
+                    yValue = _y[luma + column] & 0xFF;
+                }
+                pixels[target + x] = toArgb(yValue, (_u[chroma + column / 2] & 0xFF) - 128, (_v[chroma + column / 2] & 0xFF) - 128);
+            }
+        }
+        return pixels;
+    }
+
+    // the camera frame read last, before any layer shrinks it
+    public int getSourceWidth() {
+        return _width;
+    }
+
+    public int getSourceHeight() {
+        return _height;
+    }
+
+    public int getWidth(int layer) {
+        return _widths[layer];
+    }
+
+    public int getHeight(int layer) {
+        return _heights[layer];
+    }
+
+    // full range bt.601, what camera frames and jpeg both use. the factors are scaled by 1024
+    private static int toArgb(int y, int u, int v) {
+        int r = y + ((1436 * v) >> 10);
+        int g = y - ((352 * u + 731 * v) >> 10);
+        int b = y + ((1815 * u) >> 10);
+        return 0xFF000000 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
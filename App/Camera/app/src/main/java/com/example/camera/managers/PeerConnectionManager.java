@@ -1,46 +1,129 @@
 package com.example.camera.managers;
 
 import android.util.Log;
-import android.util.Pair;
 
 import com.example.camera.classes.*;
 import com.example.camera.utils.NetworkingUtils;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
-import java.util.function.Supplier;
 
 public class PeerConnectionManager {
     private static final String TAG = "PeerConnectionManager";
     private static final int PACKET_SIZE = 40000;
     private static final int PORT = 12345;
+    // a fragment the socket buffer had no room for is tried again on a timer this many times, then left to nacks
     private static final int MAX_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 2;
     private static final int CLEANUP_MS = 15000;
-    private static final int MAX_QUEUE_SIZE = 100;
+    // compact datagrams stay under the path mtu so losing one ip fragment can't take a whole 40 KB packet with it.
+    // 1200 fits nearly every path, larger sizes are only used once a probe of that size got through
+    private static final int[] DATAGRAM_SIZES = {1200, 1350, 1472};
+    private static final int MAX_DATAGRAM_SIZE = DATAGRAM_SIZES[DATAGRAM_SIZES.length - 1];
+    private static final int MAX_QUEUE_SIZE = 1024;
+    private static final int PACKET_POOL_SIZE = MAX_QUEUE_SIZE + 28;
+    private static final int STOP_TIMEOUT_MS = 500;
+    // only legacy peers still send full size packets
+    private static final int LARGE_PACKET_POOL_SIZE = 32;
+    private static final int HELLO_INTERVAL_MS = 500;
+    private static final int MAX_HELLO_ATTEMPTS = 10;
+    private static final int NACK_SCAN_MS = 5;
+    private static final int NACK_QUIET_MS = 20;
+    private static final int RETRANSMIT_HISTORY = 8;
+    private static final int RETRANSMIT_DEADLINE_MS = 200;
+    // paced faster than the target so a frame still goes out well within its interval
+    private static final float PACING_FACTOR = 2.5f;
+    // datagrams of the largest size in the frame that may go out back to back
+    private static final int PACING_BURST_PACKETS = 4;
+    private static final int REPORT_INTERVAL_MS = 500;
+    private static final int PING_INTERVAL_MS = 1000;
+    private static final int PROBE_INTERVAL_MS = 1000;
+    private static final int MAX_PROBE_ATTEMPTS = 3;
+    // loss this high after stepping up suggests the bigger datagrams are being fragmented or dropped
+    private static final float MTU_LOSS_LIMIT = 0.1f;
+    // above this many participants every frame goes up once to the forwarding server instead of once per peer
+    private static final int SFU_PARTICIPANT_THRESHOLD = 4;
+    // joins double as keep alives, the server forgets a participant after ten silent seconds
+    private static final int SFU_JOIN_INTERVAL_MS = 1000;
+    private static final String SFU_USERNAME = "sfu";
+    // a keyframe takes about a round trip to arrive, asking again sooner only makes more of them
+    private static final int KEYFRAME_REQUEST_INTERVAL_MS = 250;
+    private static final float LOSS_RISE_WEIGHT = 0.5f;
+    private static final float LOSS_FALL_WEIGHT = 0.1f;
 
     private static final PeerConnectionManager INSTANCE = new PeerConnectionManager();
 
-    private final ConcurrentHashMap<Pair<Long, String>, List<DataPacket>> _incompleteFrames = new ConcurrentHashMap<>();
-    private final LinkedBlockingQueue<DataPacket> _packetQueue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
-    private final AtomicLong _latestTimestamp = new AtomicLong(0);
+    // the transport loop is its only producer and the reassembly thread its only consumer
+    private final PacketRing _packetRing = new PacketRing(MAX_QUEUE_SIZE, PacketRing.WaitStrategy.PARK);
+    private final PacketPool _packetPool = new PacketPool(PACKET_POOL_SIZE, MAX_DATAGRAM_SIZE);
+    private final PacketPool _largePacketPool = new PacketPool(LARGE_PACKET_POOL_SIZE, PACKET_SIZE);
+    private final ByteBuffer _receiveBuffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+    private final AtomicLong _droppedPackets = new AtomicLong(0);
+    private final FramePublisher _framePublisher = new FramePublisher();
+    // only touched by the transport loop, mtu probes are the largest control packets
+    private final ByteBuffer _controlBuffer = ByteBuffer.allocate(Math.max(WireFormat.MAX_NACK_SIZE, MAX_DATAGRAM_SIZE));
+    // only touched by the transport loop, a fragment is copied here to be flagged as resent
+    private final ByteBuffer _retransmitBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final Random _random = new Random();
+    private final Pacer _pacer = new Pacer(BitrateController.START_BITRATE, PACING_BURST_PACKETS * DATAGRAM_SIZES[0]);
+    private final AtomicBoolean _nackScanScheduled = new AtomicBoolean();
 
-    private Supplier<byte[]> _dataSupplier = () -> new byte[0];
     private Consumer<CompleteData> _onCompleteDataReceived = data -> {};
+    private Consumer<Integer> _onTargetBitrateChanged = bitrate -> {};
+    private Consumer<Integer> _onKeyframeRequested = layer -> {};
 
-    private final List<Connection> _connections = Collections.synchronizedList(new ArrayList<>());
-    private DatagramSocket _receiveSocket;
+    // copy on write, so the sender and receiver can walk it per packet without locking. while the loop runs only
+    // the loop changes it, so loop code walks it by index without allocating. other threads use for-each, which
+    // walks a snapshot and can't be cut short by a peer leaving
+    private final List<Connection> _connections = new CopyOnWriteArrayList<>();
+    private DatagramChannel _receiveChannel;
 
-    private Thread _receiveThread;
-    private Thread _processThread;
-    private Thread _cleanupThread;
+    // receiving, sending and every timer run on the scheduler, only reassembly has a thread of its own
+    private TransportScheduler _scheduler;
+    private Thread _reassemblyThread;
 
     private volatile boolean _isRunning = false;
+    private volatile boolean _checksumEnabled = false;
+    private volatile boolean _fecEnabled = true;
+    private volatile int _localSenderId = 1 + _random.nextInt(WireFormat.SFU_SENDER_ID - 1);
+    // set while the room runs through the forwarding server, every peer is then reached through it
+    private volatile Connection _sfuConnection;
+    // indexed by simulcast layer, then by datagram size like DATAGRAM_SIZES
+    private volatile Packetizer[][] _compactPacketizers;
+    // the same for the plain jpeg frames of compact peers that can't decode delta frames
+    private volatile Packetizer[][] _plainPacketizers;
+    private volatile int _targetBitrate = BitrateController.START_BITRATE;
+    private long _sessionStart = System.currentTimeMillis();
+    // our own username packed for the wire, the same for every connection of a session
+    private volatile long _localUsernameKey;
+
+    // the frame being paced out, only touched by the transport loop
+    private Packetizer _legacyPacketizer;
+    private long _lastSentVersion;
+    private boolean _isSendingFrame;
+    // a lane is one frame of one layer on its way to one peer. the arrays are kept from frame to frame and
+    // only grow with the room
+    private Connection[] _sendConnections = new Connection[EncoderSettings.LAYER_COUNT];
+    private Packetizer[] _sendPacketizers = new Packetizer[EncoderSettings.LAYER_COUNT];
+    private DatagramChannel[] _sendChannels = new DatagramChannel[EncoderSettings.LAYER_COUNT];
+    private int _sendLaneCount;
+    private int _sendPacketCount;
+    private int _sendPacketIndex;
+    private int _sendLaneIndex;
+    private int _sendRetries;
+    private TransportScheduler.Timer _playoutTimer;
 
     private PeerConnectionManager() {}
 
@@ -48,364 +131,1319 @@ public class PeerConnectionManager {
         return INSTANCE;
     }
 
-    public void setDataSupplier(Supplier<byte[]> supplier) {
-        this._dataSupplier = supplier;
+    // the frame is sent once per new version instead of being polled for
+    public void publishFrame(byte[] frame) {
+        if (frame == null || frame.length == 0) return;
+
+        _framePublisher.publish(frame);
+        TransportScheduler scheduler = _scheduler;
+        if (scheduler != null) {
+            scheduler.execute(this::sendLatestFrame);
+        }
+    }
+
+    // one encoded frame per simulcast layer, null for the layers getWantedLayers() left out, and one plain jpeg
+    // frame per layer in getPlainLayers(). plain layers may be null when no peer needs them
+    public void publishFrame(byte[][] layers, byte[][] plainLayers) {
+        if (layers == null || layers.length == 0) return;
+
+        _framePublisher.publish(layers);
+        if (plainLayers != null) {
+            _framePublisher.publishPlain(plainLayers);
+        }
+        TransportScheduler scheduler = _scheduler;
+        if (scheduler != null) {
+            scheduler.execute(this::sendLatestFrame);
+        }
+    }
+
+    // true while the newest frame of a layer is waiting for the frame before it to finish going out. encoding
+    // the layer again would replace it, and the delta after would be based on a frame nobody received
+    public boolean hasUnsentFrame(int layer) {
+        return _framePublisher.hasUnsentFrame(layer);
+    }
+
+    // a bit per simulcast layer that some peer is being sent delta frames of, the others aren't worth encoding
+    public int getWantedLayers() {
+        int wanted = 0;
+        for (Connection connection : _connections) {
+            if (connection.isViewingUs() && !isPlainPeer(connection)) {
+                wanted |= 1 << layerFor(connection);
+            }
+        }
+        return wanted;
+    }
+
+    // a bit per simulcast layer that some peer is being sent plain jpeg frames of
+    public int getPlainLayers() {
+        int plain = 0;
+        for (Connection connection : _connections) {
+            if (connection.isViewingUs() && isPlainPeer(connection)) {
+                plain |= 1 << layerFor(connection);
+            }
+        }
+        return plain;
+    }
+
+    // the participants whose tiles are on screen. the others are told to stop sending to us, so what a
+    // big room costs is set by the grid rather than by how many are in it
+    public void setVisibleParticipants(Collection<String> usernames) {
+        for (Connection connection : _connections) {
+            boolean visible = usernames.contains(connection.getUsername());
+            if (connection.isVisible() != visible) {
+                connection.setVisible(visible);
+                TransportScheduler scheduler = _scheduler;
+                if (scheduler != null) {
+                    scheduler.execute(() -> sendSubscribe(connection));
+                }
+            }
+        }
+    }
+
+    // the codecs every peer that gets delta frames can decode, the others get their own plain jpeg frames.
+    // through the server every receiver of a layer gets the same frames, so there one peer without codecs
+    // still turns everyone to plain jpeg
+    public int getCommonCodecs() {
+        boolean throughSfu = _sfuConnection != null;
+        int common = FrameCodecs.SUPPORTED;
+        for (Connection connection : _connections) {
+            if (throughSfu || !isPlainPeer(connection)) {
+                common &= connection.getWireVersion() >= WireFormat.VERSION_COMPACT ? connection.getRemoteCodecs() : 0;
+            }
+        }
+        return common;
+    }
+
+    // a peer that can't decode any of our codecs, which includes one that hasn't said hello yet. it is sent
+    // plain jpeg frames so the others don't have to be
+    private boolean isPlainPeer(Connection connection) {
+        if (_sfuConnection != null) return false;
+        return connection.getWireVersion() < WireFormat.VERSION_COMPACT
+                || (connection.getRemoteCodecs() & FrameCodecs.SUPPORTED) == 0;
+    }
+
+    // asks a peer for the layer that fits the tile its video is drawn in
+    public void setPreferredLayer(String username, int layer) {
+        if (layer < 0 || layer >= EncoderSettings.LAYER_COUNT) return;
+
+        for (Connection connection : _connections) {
+            if (connection.getUsername().equals(username) && connection.getPreferredLayer() != layer) {
+                connection.setPreferredLayer(layer);
+                TransportScheduler scheduler = _scheduler;
+                if (scheduler != null) {
+                    scheduler.execute(() -> sendSubscribe(connection));
+                }
+            }
+        }
+    }
+
+    // tells a peer how much of its video we can use: the tile it is drawn in, the frame rate worth sending
+    // and the share of our decode budget it gets. repeated with every report like the layer
+    public void setReceiveConstraints(String username, ReceiveConstraints constraints) {
+        for (Connection connection : _connections) {
+            if (connection.getUsername().equals(username) && !connection.getPreferredConstraints().equals(constraints)) {
+                connection.setPreferredConstraints(constraints);
+                TransportScheduler scheduler = _scheduler;
+                if (scheduler != null) {
+                    scheduler.execute(() -> sendSubscribe(connection));
+                }
+            }
+        }
+    }
+
+    // the largest width any peer being sent this layer can draw, 0 when one of them has no limit
+    public int getLayerMaxWidth(int layer) {
+        int max = 0;
+        for (Connection connection : _connections) {
+            if (!connection.isViewingUs() || layerFor(connection) != layer) continue;
+            int width = connection.getSubscribedConstraints().getMaxWidth();
+            if (width == 0) return 0;
+            max = Math.max(max, width);
+        }
+        return max;
+    }
+
+    public int getLayerMaxHeight(int layer) {
+        int max = 0;
+        for (Connection connection : _connections) {
+            if (!connection.isViewingUs() || layerFor(connection) != layer) continue;
+            int height = connection.getSubscribedConstraints().getMaxHeight();
+            if (height == 0) return 0;
+            max = Math.max(max, height);
+        }
+        return max;
+    }
+
+    // a layer is one stream of delta frames shared by everyone on it, so it runs as fast as its fastest peer
+    public int getLayerMaxFps(int layer) {
+        int max = 0;
+        for (Connection connection : _connections) {
+            if (!connection.isViewingUs() || layerFor(connection) != layer) continue;
+            int fps = connection.getSubscribedConstraints().getMaxFps();
+            if (fps == 0) return 0;
+            max = Math.max(max, fps);
+        }
+        return max;
     }
 
     public void setOnCompleteDataReceived(Consumer<CompleteData> callback) {
         this._onCompleteDataReceived = callback;
     }
 
+    // called with the bitrate the slowest compact peer can take, whenever it changes
+    public void setOnTargetBitrateChanged(Consumer<Integer> callback) {
+        this._onTargetBitrateChanged = callback;
+    }
+
+    // called with the simulcast layer of a peer that can't decode our delta frames any more and needs the whole
+    // picture. everyone on that layer gets the keyframe, they all follow the same stream of deltas
+    public void setOnKeyframeRequested(Consumer<Integer> callback) {
+        this._onKeyframeRequested = callback;
+    }
+
+    // asks a peer to send its next frame whole, at most once per request interval. the id of the frame that
+    // didn't decode lets the peer ignore the request if it sent a keyframe since
+    public void requestKeyframe(String username, long failedFrameId) {
+        long now = System.currentTimeMillis();
+        for (Connection connection : _connections) {
+            if (connection.getUsername().equals(username)
+                    && now - connection.getLastKeyframeRequestAt() >= KEYFRAME_REQUEST_INTERVAL_MS) {
+                connection.setLastKeyframeRequestAt(now);
+                TransportScheduler scheduler = _scheduler;
+                if (scheduler != null) {
+                    scheduler.execute(() -> sendKeyframeRequest(connection, failedFrameId));
+                }
+            }
+        }
+    }
+
+    // adds a crc32c trailer to every compact packet we send, for links that mangle udp payloads
+    public void setChecksumEnabled(boolean checksumEnabled) {
+        this._checksumEnabled = checksumEnabled;
+    }
+
+    // parity fragments are only added while peers report loss, this turns them off entirely
+    public void setFecEnabled(boolean fecEnabled) {
+        this._fecEnabled = fecEnabled;
+        updateParity();
+    }
+
+    // a room change only touches the peers that joined or left. everyone else keeps their channel, reassembly
+    // state and bitrate estimate, and nothing in flight is dropped. moving between a mesh and the server
+    // changes where every packet goes, so that still starts the transport over
     public void connectToParticipants() {
-        shutdown();
+        Room room = Room.getConnectedRoom();
+        boolean useSfu = shouldUseSfu(room);
+        Connection sfu = _sfuConnection;
+        boolean sameRoute = useSfu ? sfu != null && sfu.getUserIp().equals(room.getSfuIp()) : sfu == null;
+
+        TransportScheduler scheduler = _scheduler;
+        if (_isRunning && scheduler != null && sameRoute) {
+            // the loop walks the connections by index, so only the loop may change them while it runs
+            String self = User.getConnectedUser().getUsername();
+            scheduler.execute(() -> updateParticipants(room, self, useSfu));
+        } else {
+            restartTransport();
+        }
+    }
+
+    // runs on the loop
+    private void updateParticipants(Room room, String self, boolean useSfu) {
+        Map<String, String> participants = room.getParticipants();
+
+        List<Connection> removed = new ArrayList<>();
+        for (Connection connection : _connections) {
+            if (!participants.containsKey(connection.getUsername()) || connection.getUsername().equals(self)) {
+                removed.add(connection);
+            }
+        }
+        // packets from them stop resolving to a sender and their frames are no longer played out from here on
+        _connections.removeAll(removed);
+        for (Connection connection : removed) {
+            connection.getFrameAssembler().clear();
+            connection.getJitterBuffer().clear();
+            dropLanes(connection);
+            closePeerChannel(connection);
+        }
+
+        participants.forEach((username, ip) -> {
+            if (username.equals(self)) return;
+
+            String peerIp = useSfu ? room.getSfuIp() : ip;
+            Connection existing = null;
+            for (Connection connection : _connections) {
+                if (connection.getUsername().equals(username)) {
+                    existing = connection;
+                    break;
+                }
+            }
+            if (existing == null) {
+                // said hello to by the next round of sendHellos, like everyone at the start
+                _connections.add(createConnection(username, peerIp, new ArrayList<>()));
+            } else {
+                updateConnectionIp(existing, peerIp);
+            }
+        });
+
+        updateParity();
+        updateTargetBitrate();
+    }
+
+    // the rest of the frame being paced out skips a peer that left, like one whose channel failed
+    private void dropLanes(Connection connection) {
+        for (int i = 0; i < _sendLaneCount; i++) {
+            if (_sendConnections[i] == connection) {
+                _sendChannels[i] = null;
+            }
+        }
+    }
+
+    private void restartTransport() {
+        List<Connection> previous = new ArrayList<>(_connections);
+        Connection previousSfu = _sfuConnection;
+        stopThreads();
         _isRunning = true;
-        startReceiveThread();
-        startProcessThread();
-        startCleanupThread();
+        _sessionStart = System.currentTimeMillis();
         _connections.clear();
 
         Room room = Room.getConnectedRoom();
         String self = User.getConnectedUser().getUsername();
+        _localUsernameKey = WireFormat.packUsername(self);
+
+        boolean useSfu = shouldUseSfu(room);
+        _sfuConnection = useSfu ? createSfuConnection(room.getSfuIp()) : null;
 
         room.getParticipants().forEach((username, ip) -> {
             if (!username.equals(self)) {
-                _connections.add(createConnection(username, ip));
+                _connections.add(createConnection(username, useSfu ? room.getSfuIp() : ip, previous));
             }
         });
+
+        for (Connection connection : previous) {
+            closePeerChannel(connection);
+        }
+        if (previousSfu != null) {
+            closePeerChannel(previousSfu);
+        }
+
+        startTransport();
+        startReassemblyThread();
     }
 
     public void shutdown() {
+        stopThreads();
+
+        for (Connection connection : _connections) {
+            closePeerChannel(connection);
+        }
+        _connections.clear();
+
+        if (_sfuConnection != null) {
+            closePeerChannel(_sfuConnection);
+            _sfuConnection = null;
+        }
+    }
+
+    private void stopThreads() {
         _isRunning = false;
 
-        synchronized (_connections) {
-            _connections.forEach(conn -> {
-                if (conn.getSendThread() != null) {
-                    conn.getSendThread().interrupt();
-                }
-            });
-            _connections.clear();
+        for (Connection connection : _connections) {
+            connection.getFrameAssembler().clear();
+            connection.getJitterBuffer().clear();
+        }
+
+        // the loop closes the receive channel on its way out
+        if (_scheduler != null) _scheduler.stop();
+        if (_reassemblyThread != null) {
+            _reassemblyThread.interrupt();
+            try {
+                _reassemblyThread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
-        if (_receiveThread != null) _receiveThread.interrupt();
-        if (_processThread != null) _processThread.interrupt();
-        if (_cleanupThread != null) _cleanupThread.interrupt();
+        _scheduler = null;
+        _reassemblyThread = null;
+        _receiveChannel = null;
+        _framePublisher.clear();
 
-        if (_receiveSocket != null && !_receiveSocket.isClosed()) {
-            _receiveSocket.close();
+        // both ends of the ring have stopped, so it is safe to empty from here
+        DataPacket queued;
+        while ((queued = _packetRing.poll()) != null) {
+            releasePacket(queued);
         }
+    }
 
-        _receiveThread = null;
-        _processThread = null;
-        _cleanupThread = null;
-        _receiveSocket = null;
-        _incompleteFrames.clear();
-        _packetQueue.clear();
+    // datagrams thrown away because the pool ran dry or they didn't parse
+    public long getDroppedPackets() {
+        return _droppedPackets.get();
     }
 
-    private Connection createConnection(String username, String ip) {
-        Thread sendThread = createSendThread(ip);
-        sendThread.setDaemon(true);
-        sendThread.start();
-        return new Connection(username, ip, sendThread);
+    // packets turned away because reassembly fell a whole ring behind the socket
+    public long getOverflowedPackets() {
+        return _packetRing.getDroppedPackets();
     }
 
-    private void startReceiveThread() {
-        if (_receiveThread != null && _receiveThread.isAlive()) return;
+    // PARK by default, spinning trades a core for lower latency on devices that can spare it
+    public void setReceiveWaitStrategy(PacketRing.WaitStrategy waitStrategy) {
+        _packetRing.setWaitStrategy(waitStrategy);
+    }
 
-        _receiveThread = new Thread(() -> {
-            try {
-                _receiveSocket = new DatagramSocket(PORT);
-                _receiveSocket.setReceiveBufferSize(PACKET_SIZE * 10);
+    // keeps the resolved address and connected channel of a peer that was already in the room
+    private Connection createConnection(String username, String ip, List<Connection> previous) {
+        Connection connection = new Connection(username, ip);
+        connection.setFrameAssembler(new FrameAssembler(username));
+
+        for (Connection old : previous) {
+            if (old.getUsername().equals(username)) {
+                connection.setUserIp(old.getUserIp());
+                connection.setAddress(old.getAddress());
+                connection.setChannel(old.getChannel());
+                updateConnectionIp(connection, ip);
+                previous.remove(old);
+                break;
+            }
+        }
+        return connection;
+    }
 
-                byte[] buffer = new byte[PACKET_SIZE * 2];
+    // a full mesh uploads every frame once per peer, past a handful of peers one upload to the server is cheaper
+    private static boolean shouldUseSfu(Room room) {
+        if (room.getSfuIp() == null || room.getSfuIp().isEmpty()) return false;
+        return room.isAlwaysUseSfu() || room.getParticipants().size() > SFU_PARTICIPANT_THRESHOLD;
+    }
 
-                while (_isRunning && !Thread.currentThread().isInterrupted()) {
-                    try {
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                        _receiveSocket.receive(packet);
+    // the server only speaks the compact format and never answers mtu probes, so it stays at the safe size
+    private Connection createSfuConnection(String sfuIp) {
+        Connection sfu = new Connection(SFU_USERNAME, sfuIp);
+        sfu.setRemoteSenderId(WireFormat.SFU_SENDER_ID);
+        sfu.setWireVersion(WireFormat.VERSION_COMPACT);
+        return sfu;
+    }
 
-                        DataPacket parsedPacket = parsePacket(packet);
+    // where packets meant for a peer actually go
+    private Connection uplinkFor(Connection connection) {
+        Connection sfu = _sfuConnection;
+        return sfu != null ? sfu : connection;
+    }
 
-                        boolean added = _packetQueue.offer(parsedPacket);
-                        if (!added) {
-                            _packetQueue.poll();
-                            _packetQueue.offer(parsedPacket);
-                        }
-                    } catch (SocketTimeoutException ste) {
-                        continue;
-                    } catch (Exception e) {
-                        handleReceiveError(e);
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Receive thread error", e);
-            } finally {
-                closeSocket();
-            }
-        });
+    // the only place a cached address is thrown away, the next send resolves and connects again
+    private void updateConnectionIp(Connection connection, String ip) {
+        if (ip.equals(connection.getUserIp())) return;
 
-        _receiveThread.setName("PeerConnectionReceiver");
-        _receiveThread.setDaemon(true);
-        _receiveThread.setPriority(Thread.MAX_PRIORITY);
-        _receiveThread.start();
+        connection.setUserIp(ip);
+        closePeerChannel(connection);
     }
 
-    private void startProcessThread() {
-        if (_processThread != null && _processThread.isAlive()) return;
+    private InetSocketAddress getPeerAddress(Connection connection) {
+        InetSocketAddress address = connection.getAddress();
+        if (address == null) {
+            address = new InetSocketAddress(connection.getUserIp(), PORT);
+            connection.setAddress(address);
+        }
+        return address;
+    }
 
-        _processThread = new Thread(() -> {
-            List<DataPacket> batchPackets = new ArrayList<>();
+    // a connected channel lets the kernel skip the route lookup on every send. through the server media goes
+    // out of the receive socket like the joins, the server only takes packets from the address it knows us by
+    private DatagramChannel getPeerChannel(Connection connection) throws IOException {
+        if (connection == _sfuConnection) {
+            DatagramChannel receiveChannel = _receiveChannel;
+            if (receiveChannel == null) throw new ClosedChannelException();
+            return receiveChannel;
+        }
 
-            while (_isRunning && !Thread.currentThread().isInterrupted()) {
-                try {
-                    batchPackets.clear();
+        DatagramChannel channel = connection.getChannel();
+        if (channel == null || !channel.isOpen()) {
+            channel = DatagramChannel.open();
+            channel.socket().setSendBufferSize(PACKET_SIZE * 10);
+            // written from the loop, a full socket buffer must never block it
+            channel.configureBlocking(false);
+            channel.connect(getPeerAddress(connection));
+            connection.setChannel(channel);
+        }
+        return channel;
+    }
 
-                    DataPacket head = _packetQueue.peek();
-                    if (head == null) {
-                        Thread.sleep(1);
-                        continue;
-                    }
-                    _packetQueue.drainTo(batchPackets, 20);
+    private void closePeerChannel(Connection connection) {
+        DatagramChannel channel = connection.getChannel();
+        connection.setChannel(null);
+        connection.setAddress(null);
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing channel to " + connection.getUsername(), e);
+        }
+    }
 
-                    for (DataPacket packet : batchPackets) {
-                        processReceivedPacket(packet);
-                    }
+    private void startTransport() {
+        try {
+            _scheduler = new TransportScheduler("PeerConnectionTransport");
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening transport", e);
+            return;
+        }
 
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                } catch (Exception e) {
-                    Log.e(TAG, "Process thread error", e);
-                }
-            }
+        TransportScheduler scheduler = _scheduler;
+        scheduler.execute(() -> {
+            openReceiveChannel(scheduler);
+            createPacketizers();
+            sendJoin();
+            sendHellos();
+
+            scheduler.scheduleRepeating(this::sendHellos, HELLO_INTERVAL_MS, HELLO_INTERVAL_MS);
+            scheduler.scheduleRepeating(this::sendJoin, SFU_JOIN_INTERVAL_MS, SFU_JOIN_INTERVAL_MS);
+            scheduler.scheduleRepeating(this::sendReports, REPORT_INTERVAL_MS, REPORT_INTERVAL_MS);
+            scheduler.scheduleRepeating(this::sendPings, PING_INTERVAL_MS, PING_INTERVAL_MS);
+            scheduler.scheduleRepeating(this::sendProbes, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS);
+            scheduler.scheduleRepeating(this::cleanupOldFrames, CLEANUP_MS, CLEANUP_MS);
         });
+        scheduler.start();
+    }
 
-        _processThread.setName("PeerConnectionProcessor");
-        _processThread.setDaemon(true);
-        _processThread.setPriority(Thread.NORM_PRIORITY + 2);
-        _processThread.start();
+    private void openReceiveChannel(TransportScheduler scheduler) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().setReceiveBufferSize(PACKET_SIZE * 10);
+            channel.bind(new InetSocketAddress(PORT));
+            channel.configureBlocking(false);
+            // everything comes from the server then, and media can be written to it like to a peer channel
+            Connection sfu = _sfuConnection;
+            if (sfu != null) {
+                channel.connect(getPeerAddress(sfu));
+            }
+            scheduler.register(channel, SelectionKey.OP_READ, this::drainReceiveChannel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        _receiveChannel = channel;
     }
 
-    private void handleReceiveError(Exception e) {
-        if (_isRunning && !Thread.currentThread().isInterrupted()) {
-            Log.w(TAG, "Receive error", e);
-            try {
-                Thread.sleep(RETRY_DELAY_MS);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
+    // legacy peers can't nack or pick a layer, so only compact frames are kept for retransmission
+    private void createPacketizers() {
+        _legacyPacketizer = new Packetizer(WireFormat.VERSION_LEGACY, WireFormat.STREAM_VIDEO,
+                WireFormat.LEGACY_FRAGMENT_SIZE, 1);
+        _compactPacketizers = createCompactPacketizers();
+        _plainPacketizers = createCompactPacketizers();
+        _lastSentVersion = _framePublisher.getVersion();
+        _isSendingFrame = false;
+        updateParity();
+    }
+
+    private static Packetizer[][] createCompactPacketizers() {
+        Packetizer[][] packetizers = new Packetizer[EncoderSettings.LAYER_COUNT][DATAGRAM_SIZES.length];
+        for (int layer = 0; layer < EncoderSettings.LAYER_COUNT; layer++) {
+            for (int i = 0; i < DATAGRAM_SIZES.length; i++) {
+                int fragmentSize = DATAGRAM_SIZES[i] - WireFormat.MAX_COMPACT_HEADER_SIZE;
+                packetizers[layer][i] = new Packetizer(WireFormat.VERSION_COMPACT, layer, fragmentSize,
+                        RETRANSMIT_HISTORY);
             }
         }
+        return packetizers;
     }
 
-    private void closeSocket() {
-        if (_receiveSocket != null && !_receiveSocket.isClosed()) {
-            _receiveSocket.close();
+    // datagrams land in one scratch buffer and are copied into a pooled packet of the right size,
+    // so the many small compact fragments don't each hold a buffer big enough for a legacy packet
+    // control packets are small and answered right here, media goes on to the reassembly thread
+    private void drainReceiveChannel() throws Exception {
+        while (true) {
+            _receiveBuffer.clear();
+            try {
+                if (_receiveChannel.receive(_receiveBuffer) == null) return;
+            } catch (PortUnreachableException e) {
+                // the server isn't up yet, the socket stays connected and the next join tries again
+                continue;
+            }
+            _receiveBuffer.flip();
+
+            DataPacket packet = (_receiveBuffer.remaining() <= MAX_DATAGRAM_SIZE ? _packetPool : _largePacketPool).acquire();
+            if (packet == null) {
+                // pool is empty, the socket is still emptied so it doesn't back up
+                _droppedPackets.incrementAndGet();
+                continue;
+            }
+
+            ByteBuffer buffer = packet.getBuffer();
+            buffer.put(_receiveBuffer);
+            buffer.flip();
+
+            if (!parsePacket(packet)) {
+                releasePacket(packet);
+                _droppedPackets.incrementAndGet();
+                continue;
+            }
+
+            if (packet.isControl()) {
+                try {
+                    handleControlPacket(packet);
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    // a truncated body, only this packet is dropped and the rest of the batch still runs
+                    _droppedPackets.incrementAndGet();
+                } finally {
+                    releasePacket(packet);
+                }
+                continue;
+            }
+
+            if (!_packetRing.offer(packet)) {
+                releasePacket(packet);
+            }
         }
-        _receiveSocket = null;
     }
 
-    private void startCleanupThread() {
-        if (_cleanupThread != null && _cleanupThread.isAlive()) return;
+    // the pools belong to the transport loop, and to whoever stops it once it has stopped
+    private void releasePacket(DataPacket packet) {
+        poolOf(packet).release(packet);
+    }
 
-        _cleanupThread = new Thread(() -> {
+    // from the reassembly thread, which hands packets back without taking the loop's side of the pool
+    private void returnPacket(DataPacket packet) {
+        poolOf(packet).returnPacket(packet);
+    }
+
+    private PacketPool poolOf(DataPacket packet) {
+        return packet.getBuffer().capacity() > MAX_DATAGRAM_SIZE ? _largePacketPool : _packetPool;
+    }
+
+    private void startReassemblyThread() {
+        _reassemblyThread = new Thread(() -> {
             while (_isRunning && !Thread.currentThread().isInterrupted()) {
                 try {
-                    Thread.sleep(CLEANUP_MS);
-                    cleanupOldFrames();
+                    processReceivedPacket(_packetRing.take());
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    Log.e(TAG, "Reassembly thread error", e);
                 }
             }
         });
 
-        _cleanupThread.setName("PeerConnectionCleaner");
-        _cleanupThread.setDaemon(true);
-        _cleanupThread.start();
+        _reassemblyThread.setName("PeerConnectionReassembler");
+        _reassemblyThread.setDaemon(true);
+        _reassemblyThread.setPriority(Thread.NORM_PRIORITY + 2);
+        _reassemblyThread.start();
     }
 
     private void cleanupOldFrames() {
-        long currentTime = System.currentTimeMillis();
-        long cutoffTime = currentTime - CLEANUP_MS;
+        long cutoffTime = System.currentTimeMillis() - CLEANUP_MS;
 
-        // i use iterator for concurrent modification safety
-        for (Iterator<Map.Entry<Pair<Long, String>, List<DataPacket>>> it = _incompleteFrames.entrySet().iterator(); it.hasNext();) {
-            Map.Entry<Pair<Long, String>, List<DataPacket>> entry = it.next();
-            if (entry.getKey().first < cutoffTime) {
-                it.remove();
-            }
+        for (Connection connection : _connections) {
+            connection.getFrameAssembler().expireFrames(cutoffTime);
         }
     }
 
-    private DataPacket parsePacket(DatagramPacket datagram) {
-        byte[] data = datagram.getData();
-        ByteBuffer buffer = ByteBuffer.wrap(data, 0, datagram.getLength());
-
-        byte[] usernameBytes = new byte[8];
-        buffer.get(usernameBytes);
-        String username = new String(usernameBytes).trim();
+    // resolves the sender by its numeric id, or by the packed username for legacy packets and hellos,
+    // so nothing is allocated
+    private boolean parsePacket(DataPacket packet) {
+        if (!packet.readHeader()) {
+            return false;
+        }
 
-        long timestamp = buffer.getLong();
-        int sequence = buffer.getInt();
-        int total = buffer.getInt();
+        boolean byUsername = packet.getVersion() == WireFormat.VERSION_LEGACY
+                || packet.getControlType() == WireFormat.CONTROL_HELLO;
 
-        int payloadLength = datagram.getLength() - buffer.position();
-        byte[] payload = new byte[payloadLength];
-        buffer.get(payload);
+        Connection sfu = _sfuConnection;
+        if (sfu != null && !byUsername && packet.getSenderId() == WireFormat.SFU_SENDER_ID) {
+            packet.setSender(sfu);
+            return true;
+        }
 
-        return new DataPacket(username, timestamp, sequence, total, payload);
+        for (int i = 0; i < _connections.size(); i++) {
+            Connection connection = _connections.get(i);
+            boolean matches = byUsername
+                    ? connection.getUsernameKey() == packet.getUsernameKey()
+                    : connection.getRemoteSenderId() == packet.getSenderId();
+            if (matches) {
+                packet.setSender(connection);
+                return true;
+            }
+        }
+        return false;
     }
 
     private void processReceivedPacket(DataPacket packet) {
-        if (packet.getTimestamp() < _latestTimestamp.get() - CLEANUP_MS) {
+        Connection sender = packet.getSender();
+        CompleteData completedData;
+        try {
+            completedData = sender.getFrameAssembler().insert(packet);
+        } finally {
+            // the payload is copied into the frame buffer, so the packet can be reused right away
+            returnPacket(packet);
+        }
+
+        TransportScheduler scheduler = _scheduler;
+        if (completedData == null) {
+            // a frame is in flight, make sure someone is watching it for gaps
+            if (scheduler != null && _nackScanScheduled.compareAndSet(false, true)) {
+                scheduler.execute(this::scanForNacks);
+            }
             return;
         }
 
-        if (packet.getTimestamp() > _latestTimestamp.get()) {
-            _latestTimestamp.set(packet.getTimestamp());
+        if (completedData.getLength() > 0) {
+            sender.getJitterBuffer().offer(completedData, System.currentTimeMillis());
+            if (scheduler != null) {
+                scheduler.execute(this::playDueFrames);
+            }
+        } else {
+            completedData.release();
+        }
+    }
+
+    // frames are handed on when their playout time comes, not when their last fragment arrives.
+    // the timer is set for the next frame due, so nothing runs while the buffers are empty
+    private void playDueFrames() {
+        long now = System.currentTimeMillis();
+        long nextPlayoutAt = Long.MAX_VALUE;
+        for (int i = 0; i < _connections.size(); i++) {
+            Connection connection = _connections.get(i);
+            JitterBuffer jitterBuffer = connection.getJitterBuffer();
+            // every due frame in order, only the ones too late to show are left out
+            CompleteData frame;
+            while ((frame = jitterBuffer.poll(now)) != null) {
+                _onCompleteDataReceived.accept(frame);
+            }
+
+            // a late frame was dropped and the delta frames after it won't decode, the sender starts over
+            long lateFrameId = jitterBuffer.pollLateFrameId();
+            if (lateFrameId >= 0 && now - connection.getLastKeyframeRequestAt() >= KEYFRAME_REQUEST_INTERVAL_MS) {
+                connection.setLastKeyframeRequestAt(now);
+                sendKeyframeRequest(connection, lateFrameId);
+            }
+            nextPlayoutAt = Math.min(nextPlayoutAt, jitterBuffer.getNextPlayoutAt());
+        }
+
+        if (_playoutTimer != null) {
+            _playoutTimer.cancel();
+            _playoutTimer = null;
+        }
+        if (nextPlayoutAt != Long.MAX_VALUE) {
+            _playoutTimer = _scheduler.schedule(this::playDueFrames, nextPlayoutAt - now);
+        }
+    }
+
+    // runs every few milliseconds while any frame is partly in, and stops once they are all done
+    private void scanForNacks() {
+        sendNacks(System.currentTimeMillis());
+
+        _nackScanScheduled.set(false);
+        if (isAssembling() && _nackScanScheduled.compareAndSet(false, true)) {
+            _scheduler.schedule(this::scanForNacks, NACK_SCAN_MS);
         }
+    }
 
-        Pair<Long, String> key = new Pair<>(packet.getTimestamp(), packet.getUsername());
+    private boolean isAssembling() {
+        for (int i = 0; i < _connections.size(); i++) {
+            if (_connections.get(i).getFrameAssembler().isAssembling()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        List<DataPacket> packets = _incompleteFrames.computeIfAbsent(key, k ->
-                Collections.synchronizedList(new ArrayList<>(packet.getTotalPackets())));
+    private void handleControlPacket(DataPacket packet) {
+        if (packet.getControlType() == WireFormat.CONTROL_HELLO) {
+            handleHello(packet);
+            return;
+        }
 
-        synchronized (packets) {
-            if (packets.stream().noneMatch(p -> p.getSequenceNumber() == packet.getSequenceNumber())) {
-                packets.add(packet);
+        // every other control packet starts with the id of the sender it is meant for
+        ByteBuffer body = packet.getBuffer();
+        if (WireFormat.getVarLong(body) != _localSenderId) {
+            return;
+        }
 
-                // sort by sequence number
-                if (packets.size() > 1) {
-                    packets.sort(Comparator.comparingInt(DataPacket::getSequenceNumber));
+        switch (packet.getControlType()) {
+            case WireFormat.CONTROL_NACK:
+                handleNack(packet.getSender(), body);
+                break;
+            case WireFormat.CONTROL_REPORT:
+                handleReport(packet.getSender(), body);
+                break;
+            case WireFormat.CONTROL_PING:
+                handlePing(packet.getSender(), body);
+                break;
+            case WireFormat.CONTROL_PONG:
+                long rtt = System.currentTimeMillis() - _sessionStart - WireFormat.getVarLong(body);
+                packet.getSender().getBitrateController().onRtt((int) rtt);
+                break;
+            case WireFormat.CONTROL_PROBE:
+                handleProbe(packet.getSender(), body);
+                break;
+            case WireFormat.CONTROL_PROBE_ACK:
+                handleProbeAck(packet.getSender(), body);
+                break;
+            case WireFormat.CONTROL_SUBSCRIBE:
+                handleSubscribe(packet.getSender(), body);
+                break;
+            case WireFormat.CONTROL_KEYFRAME_REQUEST:
+                handleKeyframeRequest(packet.getSender(), body);
+                break;
+            case WireFormat.CONTROL_JOIN_ACK:
+                if ((body.get() & WireFormat.JOIN_ID_CONFLICT) != 0) {
+                    pickNewSenderId();
                 }
+                break;
+        }
+    }
 
-                if (packets.size() == packet.getTotalPackets()) {
-                    try {
-                        byte[] complete = assemblePackets(packets);
-                        if (complete.length > 0) {
-                            CompleteData completedData = new CompleteData(
-                                    packet.getUsername(),
-                                    packet.getTimestamp(),
-                                    complete
-                            );
-                            _onCompleteDataReceived.accept(completedData);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error assembling packets", e);
-                    } finally {
-                        _incompleteFrames.remove(key);
-                    }
+    // resends only the fragments the peer is missing, as long as the frame is recent enough to still be shown
+    private void handleNack(Connection sender, ByteBuffer body) {
+        Packetizer[][] packetizers = _compactPacketizers;
+        Packetizer[][] plainPacketizers = _plainPacketizers;
+        if (packetizers == null || plainPacketizers == null) {
+            return;
+        }
+
+        // if the peer just changed tier the frame was cut differently, the receiver drops fragments that don't fit.
+        // through the server the retransmit goes to everyone on that layer, the peers that have it already ignore it
+        Connection uplink = uplinkFor(sender);
+        long frameVersion = WireFormat.getVarLong(body);
+        Packetizer packetizer = findPacketizer(packetizers, uplink.getDatagramTier(), frameVersion);
+        if (packetizer == null) {
+            packetizer = findPacketizer(plainPacketizers, uplink.getDatagramTier(), frameVersion);
+        }
+        if (packetizer == null) {
+            return;
+        }
+
+        // every range takes at least two bytes, a count past that is a corrupt packet
+        long ranges = WireFormat.getVarLong(body);
+        if (ranges < 0 || ranges > body.remaining() / 2) {
+            return;
+        }
+        long packetizedAfter = System.currentTimeMillis() - RETRANSMIT_DEADLINE_MS;
+
+        try {
+            DatagramChannel channel = getPeerChannel(uplink);
+            for (int i = 0; i < ranges; i++) {
+                long start = WireFormat.getVarLong(body);
+                long length = WireFormat.getVarLong(body);
+                // an index past the frame's last fragment ends the loop below through putRetransmit
+                if (start < 0 || length < 0 || start > Integer.MAX_VALUE || length > Integer.MAX_VALUE) return;
+                for (int index = (int) start; index < start + length; index++) {
+                    if (!packetizer.putRetransmit(frameVersion, index, packetizedAfter, _retransmitBuffer)) return;
+                    // retransmits are late already, so they skip the pacer but still use up its budget.
+                    // one the socket has no room for is dropped, the peer asks again if it still needs it
+                    _pacer.consume(_retransmitBuffer.remaining());
+                    channel.write(_retransmitBuffer);
                 }
             }
+        } catch (PortUnreachableException e) {
+            // the peer left between asking and us answering
+        } catch (Exception e) {
+            Log.w(TAG, "Error retransmitting to " + sender.getUsername(), e);
         }
     }
 
-    private byte[] assemblePackets(List<DataPacket> packets) {
-        int totalSize = 0;
-        for (DataPacket packet : packets) {
-            totalSize += packet.getPayload().length;
+    // frame ids are unique across layers and across plain and delta frames, so only one packetizer can still have it
+    private static Packetizer findPacketizer(Packetizer[][] packetizers, int tier, long frameVersion) {
+        for (Packetizer[] layer : packetizers) {
+            if (layer[tier].contains(frameVersion)) {
+                return layer[tier];
+            }
         }
+        return null;
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(totalSize);
-        for (DataPacket packet : packets) {
-            buffer.put(packet.getPayload());
+    // the reported loss is counted before parity and retransmits fill the gaps, which is what sizes the parity
+    private void handleReport(Connection sender, ByteBuffer body) {
+        float loss = ReceiveStatistics.readLoss(body);
+        float delayGradient = ReceiveStatistics.readDelayGradient(body);
+        // a peer on a smaller layer receives less than its link could take, counted as if it had the full layer
+        // so its bitrate can still climb back to where it gets the full layer again
+        long received = (long) (WireFormat.getVarLong(body) / EncoderSettings.getLayerShare(sender.getSentLayer()));
+        int receivedBitrate = (int) Math.min(Integer.MAX_VALUE, received);
+
+        sender.getBitrateController().onReport(loss, delayGradient, receivedBitrate, System.currentTimeMillis());
+
+        // rises fast and decays slowly, so parity doesn't switch off the moment it starts working
+        float lossRate = sender.getLossRate();
+        lossRate += (loss - lossRate) * (loss > lossRate ? LOSS_RISE_WEIGHT : LOSS_FALL_WEIGHT);
+        sender.setLossRate(lossRate);
+
+        // a path that starts losing after a step up goes back down and stays there
+        int tier = sender.getDatagramTier();
+        if (tier > 0 && lossRate > MTU_LOSS_LIMIT) {
+            sender.setDatagramTier(tier - 1);
+            sender.setProbeAttempts(MAX_PROBE_ATTEMPTS);
         }
 
-        return buffer.array();
+        updateParity();
+        updateTargetBitrate();
     }
 
-    private Thread createSendThread(String receiverIp) {
-        return new Thread(() -> {
-            byte[] lastSent = new byte[0];
-            DatagramSocket socket = null;
+    private void handleProbe(Connection sender, ByteBuffer body) {
+        long size = WireFormat.getVarLong(body);
+        startControl(WireFormat.CONTROL_PROBE_ACK, sender);
+        WireFormat.putVarLong(_controlBuffer, size);
+        sendControl(sender);
+    }
 
-            try {
-                socket = new DatagramSocket();
-                socket.setSendBufferSize(PACKET_SIZE * 10);
-
-                while (_isRunning && !Thread.currentThread().isInterrupted()) {
-                    try {
-                        byte[] data = _dataSupplier.get();
-                        if (data == null || data.length == 0) {
-                            Thread.sleep(5);
-                            continue;
-                        }
+    private void handleProbeAck(Connection sender, ByteBuffer body) {
+        int tier = sender.getDatagramTier();
+        if (tier + 1 < DATAGRAM_SIZES.length && WireFormat.getVarLong(body) == DATAGRAM_SIZES[tier + 1]) {
+            sender.setDatagramTier(tier + 1);
+            sender.setProbeAttempts(0);
+        }
+    }
 
-                        if (!Arrays.equals(data, lastSent)) {
-                            sendPackets(socket, data, receiverIp);
-                            lastSent = Arrays.copyOf(data, data.length);
-                        }
+    private void handlePing(Connection sender, ByteBuffer body) {
+        long echo = WireFormat.getVarLong(body);
+        startControl(WireFormat.CONTROL_PONG, sender);
+        WireFormat.putVarLong(_controlBuffer, echo);
+        sendControl(sender);
+    }
 
-                        Thread.sleep(5);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    } catch (Exception e) {
-                        if (_isRunning) {
-                            Log.e(TAG, "Send thread error", e);
-                            Thread.sleep(RETRY_DELAY_MS);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Send thread fatal error", e);
-            } finally {
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
+    // asks every compact peer for the fragments of frames that stopped arriving
+    private void sendNacks(long now) {
+        for (int i = 0; i < _connections.size(); i++) {
+            Connection connection = _connections.get(i);
+            if (connection.getWireVersion() < WireFormat.VERSION_COMPACT) continue;
+
+            FrameAssembler assembler = connection.getFrameAssembler();
+            for (int slot = 0; slot < assembler.getSlotCount(); slot++) {
+                startControl(WireFormat.CONTROL_NACK, connection);
+                if (assembler.putNack(slot, _controlBuffer, now, NACK_QUIET_MS)) {
+                    sendControl(connection);
                 }
             }
-        });
+        }
     }
 
-    private void sendPackets(DatagramSocket socket, byte[] data, String receiverIp) throws Exception {
-        try {
-            byte[] usernameBytes = Arrays.copyOf(User.getConnectedUser().getUsername().getBytes(), 8);
-            long timestamp = System.currentTimeMillis();
-            byte[] timestampBytes = ByteBuffer.allocate(Long.BYTES).putLong(timestamp).array();
+    // tells every compact peer how its frames are arriving, so it can size its bitrate and parity
+    private void sendReports() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < _connections.size(); i++) {
+            Connection connection = _connections.get(i);
+            if (connection.getWireVersion() < WireFormat.VERSION_COMPACT) continue;
+
+            startControl(WireFormat.CONTROL_REPORT, connection);
+            connection.getFrameAssembler().getStatistics().putReport(_controlBuffer, now);
+            sendControl(connection);
 
-            int headerSize = 8 + Long.BYTES + Integer.BYTES * 2;
-            int payloadSize = PACKET_SIZE - headerSize;
-            int totalPackets = (int) Math.ceil((double) data.length / payloadSize);
+            // repeated with every report, so a lost one or a server that just met us still learns it
+            sendSubscribe(connection);
+        }
+    }
+
+    private void sendKeyframeRequest(Connection connection, long failedFrameId) {
+        if (connection.getWireVersion() < WireFormat.VERSION_COMPACT) return;
 
-            for (int i = 0; i < totalPackets; i++) {
-                int start = i * payloadSize;
-                int end = Math.min(start + payloadSize, data.length);
-                byte[] payload = Arrays.copyOfRange(data, start, end);
+        startControl(WireFormat.CONTROL_KEYFRAME_REQUEST, connection);
+        WireFormat.putVarLong(_controlBuffer, failedFrameId);
+        sendControl(connection);
+    }
 
-                ByteBuffer packetBuffer = ByteBuffer.allocate(headerSize + payload.length);
-                packetBuffer.put(usernameBytes);
-                packetBuffer.put(timestampBytes);
-                packetBuffer.putInt(i);
-                packetBuffer.putInt(totalPackets);
-                packetBuffer.put(payload);
+    // deltas already on their way when a keyframe went out fail at the receiver too, and asking again for
+    // those would only make keyframes chase each other. requests without a frame id are always honored
+    private void handleKeyframeRequest(Connection sender, ByteBuffer body) {
+        long failedFrameId = body.hasRemaining() ? WireFormat.getVarLong(body) : Long.MAX_VALUE;
+        int layer = layerFor(sender);
+        if (failedFrameId >= 0 && _framePublisher.getKeyframeVersion(layer) > failedFrameId) {
+            return;
+        }
+        _onKeyframeRequested.accept(layer);
+    }
+
+    private void sendSubscribe(Connection connection) {
+        if (connection.getWireVersion() < WireFormat.VERSION_COMPACT) return;
+
+        startControl(WireFormat.CONTROL_SUBSCRIBE, connection);
+        if (connection.isVisible()) {
+            _controlBuffer.put((byte) connection.getPreferredLayer());
+            connection.getPreferredConstraints().put(_controlBuffer);
+        } else {
+            _controlBuffer.put((byte) WireFormat.SUBSCRIBE_PAUSED);
+        }
+        sendControl(connection);
+    }
 
-                sendAndRetry(socket, packetBuffer.array(), receiverIp);
+    // a peer that starts showing us again missed every delta frame since it stopped, so it gets a keyframe
+    private void handleSubscribe(Connection sender, ByteBuffer body) {
+        int layer = body.get() & 0xFF;
+        if (layer == WireFormat.SUBSCRIBE_PAUSED) {
+            sender.setViewingUs(false);
+            return;
+        }
+        if (layer >= EncoderSettings.LAYER_COUNT) return;
+
+        // peers from before constraints end the packet here
+        sender.setSubscribedConstraints(ReceiveConstraints.read(body));
+        sender.setSubscribedLayer(layer);
+        if (!sender.isViewingUs()) {
+            sender.setViewingUs(true);
+            _onKeyframeRequested.accept(layerFor(sender));
+        }
+    }
+
+    private void sendPings() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < _connections.size(); i++) {
+            Connection connection = _connections.get(i);
+            if (connection.getWireVersion() < WireFormat.VERSION_COMPACT) continue;
+
+            startControl(WireFormat.CONTROL_PING, connection);
+            WireFormat.putVarLong(_controlBuffer, now - _sessionStart);
+            sendControl(connection);
+        }
+    }
+
+    // java can't set the don't fragment bit, so a probe is simply a padded packet of the next size up.
+    // it only counts once the peer echoes it, and a few unanswered probes end the search for that peer
+    private void sendProbes() {
+        if (_sfuConnection != null) return;
+
+        for (int i = 0; i < _connections.size(); i++) {
+            Connection connection = _connections.get(i);
+            int next = connection.getDatagramTier() + 1;
+            if (connection.getWireVersion() < WireFormat.VERSION_COMPACT || next >= DATAGRAM_SIZES.length
+                    || connection.getProbeAttempts() >= MAX_PROBE_ATTEMPTS) continue;
+
+            connection.setProbeAttempts(connection.getProbeAttempts() + 1);
+            startControl(WireFormat.CONTROL_PROBE, connection);
+            WireFormat.putVarLong(_controlBuffer, DATAGRAM_SIZES[next]);
+
+            int padding = DATAGRAM_SIZES[next] - _controlBuffer.position();
+            if ((_controlBuffer.get(1) & WireFormat.FLAG_CHECKSUM) != 0) {
+                padding -= WireFormat.CHECKSUM_SIZE;
+            }
+            for (int j = 0; j < padding; j++) {
+                _controlBuffer.put((byte) 0);
             }
+            sendControl(connection);
+        }
+    }
+
+    // starts a control packet addressed to the given peer in the shared control buffer
+    private void startControl(int controlType, Connection target) {
+        _controlBuffer.clear();
+        WireFormat.putControlHeader(_controlBuffer, _checksumEnabled, _localSenderId, controlType);
+        WireFormat.putVarLong(_controlBuffer, target.getRemoteSenderId());
+    }
+
+    private void sendControl(Connection target) {
+        DatagramChannel channel = _receiveChannel;
+        if (channel == null) return;
+
+        if ((_controlBuffer.get(1) & WireFormat.FLAG_CHECKSUM) != 0) {
+            WireFormat.putChecksum(_controlBuffer, 0);
+        }
+        _controlBuffer.flip();
+
+        try {
+            channel.send(_controlBuffer, getPeerAddress(target));
         } catch (Exception e) {
-            Log.e(TAG, "Error sending packets", e);
-            throw e;
+            Log.w(TAG, "Error sending control packet to " + target.getUsername(), e);
         }
     }
 
-    private void sendAndRetry(DatagramSocket socket, byte[] packetData, String receiverIp) throws Exception {
-        Exception lastException = null;
+    // both sides send hellos until they hear one back, then talk the lowest version both understand
+    private void handleHello(DataPacket packet) {
+        Connection sender = packet.getSender();
+        int flags = packet.getHelloFlags();
 
-        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
-            try {
-                InetAddress address = InetAddress.getByName(receiverIp);
-                DatagramPacket packet = new DatagramPacket(
-                        packetData, packetData.length, address, PORT
-                );
-                socket.send(packet);
+        if ((flags & WireFormat.HELLO_ID_CONFLICT) != 0) {
+            pickNewSenderId();
+            return;
+        }
+
+        for (Connection connection : _connections) {
+            if (connection != sender && connection.getRemoteSenderId() == packet.getSenderId()) {
+                sendHello(sender, WireFormat.HELLO_ID_CONFLICT);
                 return;
-            } catch (Exception e) {
-                lastException = e;
-                if (attempt < MAX_RETRIES - 1) {
-                    Thread.sleep(RETRY_DELAY_MS * (attempt + 1));  // Exponential backoff
+            }
+        }
+
+        int version = Math.min(packet.getHelloVersion(), WireFormat.CURRENT_VERSION);
+        boolean replyRequested = (flags & WireFormat.HELLO_REPLY_REQUESTED) != 0;
+
+        if (replyRequested || sender.getRemoteSenderId() != packet.getSenderId() || sender.getWireVersion() != version) {
+            // frame ids restart with a new session or version, so old partial frames can't be finished
+            sender.getFrameAssembler().clear();
+            sender.getJitterBuffer().clear();
+        }
+        sender.setRemoteSenderId(packet.getSenderId());
+        sender.setWireVersion(version);
+        sender.setRemoteCodecs(packet.getHelloCodecs());
+
+        if (replyRequested) {
+            sendHello(sender, 0);
+        }
+    }
+
+    private void pickNewSenderId() {
+        _localSenderId = 1 + _random.nextInt(WireFormat.SFU_SENDER_ID - 1);
+
+        // fall back to the legacy format until every peer has learned the new id
+        for (Connection connection : _connections) {
+            connection.setWireVersion(WireFormat.VERSION_LEGACY);
+            connection.setHelloAttempts(0);
+        }
+        sendJoin();
+    }
+
+    // tells the server which room to forward us in, sent before anything else so it knows our id
+    private void sendJoin() {
+        Connection sfu = _sfuConnection;
+        Room room = Room.getConnectedRoom();
+        if (sfu == null || room == null) return;
+
+        byte[] roomId = room.getId().getBytes(StandardCharsets.UTF_8);
+        if (roomId.length > WireFormat.MAX_ROOM_ID_SIZE) {
+            Log.w(TAG, "Room id too long for the forwarding server: " + room.getId());
+            return;
+        }
+
+        startControl(WireFormat.CONTROL_JOIN, sfu);
+        WireFormat.putVarLong(_controlBuffer, roomId.length);
+        _controlBuffer.put(roomId);
+        sendControl(sfu);
+    }
+
+    private void sendHello(Connection connection, int flags) {
+        DatagramChannel channel = _receiveChannel;
+        if (channel == null) return;
+
+        try {
+            ByteBuffer hello = ByteBuffer.allocate(WireFormat.HELLO_SIZE);
+            WireFormat.putHello(hello, _checksumEnabled, _localSenderId, _localUsernameKey, flags, FrameCodecs.SUPPORTED);
+            if (_checksumEnabled) {
+                WireFormat.putChecksum(hello, 0);
+            }
+            hello.flip();
+            channel.send(hello, getPeerAddress(connection));
+        } catch (Exception e) {
+            Log.w(TAG, "Error sending hello", e);
+        }
+    }
+
+    // the server hands a hello to the whole room, so through it one hello covers every peer
+    private void sendHellos() {
+        boolean throughSfu = _sfuConnection != null;
+        boolean sent = false;
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < _connections.size(); i++) {
+            Connection connection = _connections.get(i);
+            if (connection.getWireVersion() != WireFormat.VERSION_LEGACY
+                    || connection.getHelloAttempts() >= MAX_HELLO_ATTEMPTS
+                    || now - connection.getLastHelloAt() < HELLO_INTERVAL_MS) {
+                continue;
+            }
+
+            connection.setLastHelloAt(now);
+            connection.setHelloAttempts(connection.getHelloAttempts() + 1);
+            if (!throughSfu || !sent) {
+                sendHello(connection, WireFormat.HELLO_REPLY_REQUESTED);
+                sent = true;
+            }
+        }
+    }
+
+    // sends the newest frames unless some are still being paced out, those pick them up when they're done
+    private void sendLatestFrame() {
+        if (_isSendingFrame || _legacyPacketizer == null) return;
+
+        long version = _framePublisher.getVersion();
+        if (version <= _lastSentVersion) return;
+        _lastSentVersion = version;
+
+        startFrame();
+        continueFrame();
+    }
+
+    // every peer is sent the newest frame of its layer. each frame is split at most once per wire version
+    // and datagram size, then the same packets go to every peer that gets it
+    private void startFrame() {
+        // through the server each layer goes up once, whatever the size of the room
+        Connection sfu = _sfuConnection;
+        // only the loop changes the connections, so their count holds for the whole frame
+        int connectionCount = _connections.size();
+        int maxLanes = sfu != null ? EncoderSettings.LAYER_COUNT : connectionCount;
+        if (_sendConnections.length < maxLanes) {
+            _sendConnections = new Connection[maxLanes];
+            _sendPacketizers = new Packetizer[maxLanes];
+            _sendChannels = new DatagramChannel[maxLanes];
+        }
+        _sendLaneCount = 0;
+        _sendPacketCount = 0;
+        _sendPacketIndex = 0;
+        _sendRetries = 0;
+        _sendLaneIndex = 0;
+        _isSendingFrame = true;
+
+        if (sfu != null) {
+            int wanted = getWantedLayers();
+            for (int layer = 0; layer < EncoderSettings.LAYER_COUNT; layer++) {
+                if ((wanted & (1 << layer)) != 0) {
+                    addLane(sfu, layer);
+                }
+            }
+        } else {
+            for (int i = 0; i < connectionCount; i++) {
+                Connection connection = _connections.get(i);
+                if (connection.isViewingUs()) {
+                    addLane(connection, layerFor(connection));
+                }
+            }
+        }
+
+        // every lane is its own copy over the same uplink. the burst follows the largest datagram size a lane's
+        // path was probed for, legacy packets are bigger than any burst and go out one per full bucket
+        int datagramSize = DATAGRAM_SIZES[0];
+        for (int i = 0; i < _sendLaneCount; i++) {
+            if (_sendConnections[i].getWireVersion() >= WireFormat.VERSION_COMPACT) {
+                datagramSize = Math.max(datagramSize, DATAGRAM_SIZES[_sendConnections[i].getDatagramTier()]);
+            }
+        }
+        _pacer.setBurst(PACING_BURST_PACKETS * datagramSize);
+        _pacer.setRate((long) (_targetBitrate * PACING_FACTOR) * Math.max(1, _sendLaneCount));
+    }
+
+    private void addLane(Connection connection, int layer) {
+        boolean plain = isPlainPeer(connection);
+        PublishedFrame frame = plain ? _framePublisher.getLatestPlain(layer) : _framePublisher.getLatest(layer);
+        if (frame == null || frame.getVersion() <= connection.getLastSentFrameId(layer)) return;
+        frame.markSent();
+        connection.setLastSentFrameId(layer, frame.getVersion());
+        connection.setSentLayer(layer);
+
+        long usernameKey = _localUsernameKey;
+        long timestamp = System.currentTimeMillis();
+        Packetizer packetizer;
+        if (connection.getWireVersion() >= WireFormat.VERSION_COMPACT) {
+            packetizer = (plain ? _plainPacketizers : _compactPacketizers)[layer][connection.getDatagramTier()];
+            packetizer.packetize(frame, usernameKey, _localSenderId, timestamp - _sessionStart, _checksumEnabled);
+        } else {
+            packetizer = _legacyPacketizer;
+            packetizer.packetize(frame, usernameKey, _localSenderId, timestamp, false);
+        }
+
+        int lane = _sendLaneCount++;
+        _sendConnections[lane] = connection;
+        _sendPacketizers[lane] = packetizer;
+        _sendPacketCount = Math.max(_sendPacketCount, packetizer.getPacketCount());
+        try {
+            _sendChannels[lane] = getPeerChannel(connection);
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening channel to " + connection.getUsername(), e);
+        }
+    }
+
+    // the layer a peer is sent: the one it subscribed to, or a smaller one if its link or its decoder can't
+    // take that. legacy peers don't know about layers and always get the full frame. through the server every
+    // subscribed layer goes up once and the server hands each receiver only its own, so there the receiver
+    // already picks a layer its decoder keeps up with
+    private int layerFor(Connection connection) {
+        if (connection.getWireVersion() < WireFormat.VERSION_COMPACT) return 0;
+        if (_sfuConnection != null) return connection.getSubscribedLayer();
+
+        int bandwidthLayer = EncoderSettings.layerForBitrate(connection.getBitrateController().getTargetBitrate());
+        ReceiveConstraints constraints = connection.getSubscribedConstraints();
+        int decodeLayer = EncoderSettings.layerForDecodeBudget(connection.getSubscribedLayer(),
+                constraints.getDecodeBudget(), constraints.getMaxFps() > 0 ? constraints.getMaxFps() : EncoderSettings.MAX_FPS);
+        return Math.max(decodeLayer, bandwidthLayer);
+    }
+
+    // lanes take turns packet by packet, so pacing delays all of them equally instead of the last one the most.
+    // when the pacer runs dry the rest of the frame waits on a timer instead of blocking the loop
+    private void continueFrame() {
+        for (; _sendPacketIndex < _sendPacketCount; _sendPacketIndex++, _sendLaneIndex = 0) {
+            for (; _sendLaneIndex < _sendLaneCount; _sendLaneIndex++) {
+                int i = _sendLaneIndex;
+                if (_sendChannels[i] == null || _sendPacketIndex >= _sendPacketizers[i].getPacketCount()) continue;
+
+                ByteBuffer packet = _sendPacketizers[i].getPacket(_sendPacketIndex);
+                int size = packet.remaining();
+                long waitNanos = _pacer.tryAcquire(size);
+                if (waitNanos > 0) {
+                    _scheduler.schedule(this::continueFrame, TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+                    return;
+                }
+
+                try {
+                    packet.position(0);
+                    if (_sendChannels[i].write(packet) == 0) {
+                        // nothing went out, so the tokens go back and the retry is paced like any other packet
+                        _pacer.refund(size);
+                        if (_sendRetries < MAX_RETRIES) {
+                            // the socket buffer is full, give it time to drain instead of waiting on it
+                            _sendRetries++;
+                            _scheduler.schedule(this::continueFrame, RETRY_DELAY_MS * _sendRetries);
+                            return;
+                        }
+                    }
+                } catch (PortUnreachableException e) {
+                    // the peer isn't listening yet, the next frame will try again
+                    _sendChannels[i] = null;
+                } catch (Exception e) {
+                    Log.e(TAG, "Error sending packets to " + _sendConnections[i].getUsername(), e);
+                    _sendChannels[i] = null;
                 }
+                _sendRetries = 0;
             }
         }
 
-        if (lastException != null) {
-            throw lastException;
+        // the arrays stay for the next frame, but nothing they point at is held on to
+        for (int i = 0; i < _sendLaneCount; i++) {
+            _sendConnections[i] = null;
+            _sendPacketizers[i] = null;
+            _sendChannels[i] = null;
+        }
+        _sendLaneCount = 0;
+        _isSendingFrame = false;
+        sendLatestFrame();
+    }
+
+    // the lossiest peer decides how much parity everyone gets
+    private void updateParity() {
+        Packetizer[][] packetizers = _compactPacketizers;
+        Packetizer[][] plainPacketizers = _plainPacketizers;
+        if (packetizers == null || plainPacketizers == null) return;
+
+        float worstLoss = 0;
+        for (Connection connection : _connections) {
+            if (connection.getWireVersion() >= WireFormat.VERSION_COMPACT) {
+                worstLoss = Math.max(worstLoss, connection.getLossRate());
+            }
+        }
+
+        int groupSize = _fecEnabled ? Packetizer.parityGroupSizeFor(worstLoss) : 0;
+        for (int layer = 0; layer < packetizers.length; layer++) {
+            for (int tier = 0; tier < packetizers[layer].length; tier++) {
+                packetizers[layer][tier].setParityGroupSize(groupSize);
+                plainPacketizers[layer][tier].setParityGroupSize(groupSize);
+            }
+        }
+    }
+
+    // the full layer is sized for the slowest peer still getting it, the slower ones are moved to a smaller layer.
+    // if nobody gets the full layer, the slowest peer of all sizes every layer
+    private void updateTargetBitrate() {
+        int target = Integer.MAX_VALUE;
+        int fullLayerTarget = Integer.MAX_VALUE;
+        for (int i = 0; i < _connections.size(); i++) {
+            Connection connection = _connections.get(i);
+            // a peer we aren't sending to has no say in the bitrate
+            if (connection.getWireVersion() >= WireFormat.VERSION_COMPACT && connection.isViewingUs()) {
+                int bitrate = connection.getBitrateController().getTargetBitrate();
+                target = Math.min(target, bitrate);
+                if (layerFor(connection) == 0) {
+                    fullLayerTarget = Math.min(fullLayerTarget, bitrate);
+                }
+            }
+        }
+        if (fullLayerTarget != Integer.MAX_VALUE) {
+            target = fullLayerTarget;
+        }
+
+        if (target != Integer.MAX_VALUE && target != _targetBitrate) {
+            _targetBitrate = target;
+            _onTargetBitrateChanged.accept(target);
         }
     }
-}
\ No newline at end of file
+}
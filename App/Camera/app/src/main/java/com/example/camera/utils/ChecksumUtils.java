@@ -0,0 +1,28 @@
+package com.example.camera.utils;
+
+import java.nio.ByteBuffer;
+
+public class ChecksumUtils {
+    // java.util.zip.CRC32C needs api 26, so this is the table driven castagnoli crc
+    private static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+    private static final int[] CRC32C_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ CRC32C_POLYNOMIAL : crc >>> 1;
+            }
+            CRC32C_TABLE[i] = crc;
+        }
+    }
+
+    // reads with absolute gets so the buffer position is left alone
+    public static int crc32c(ByteBuffer buffer, int from, int to) {
+        int crc = 0xFFFFFFFF;
+        for (int i = from; i < to; i++) {
+            crc = (crc >>> 8) ^ CRC32C_TABLE[(crc ^ buffer.get(i)) & 0xFF];
+        }
+        return ~crc;
+    }
+}
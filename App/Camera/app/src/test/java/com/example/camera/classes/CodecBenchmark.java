@@ -0,0 +1,137 @@
+package com.example.camera.classes;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// runs the pure java codecs through the tile delta encoder and decoder on a plain jvm. the unit test runs
+// a short pass of every tier, so a codec that picks up an android dependency fails here. for timings:
+//   java -cp <test and app classes> com.example.camera.classes.CodecBenchmark [width] [height] [frames]
+// the frames are a smooth gradient with noise and a square moving across it, roughly what a camera sees
+public class CodecBenchmark {
+    private static final int[] CODECS = {FrameCodecs.CODEC_DEFLATE, FrameCodecs.CODEC_LOSSLESS};
+    private static final int[] QUALITIES = {40, 60, 85};
+    private static final int WARMUP_FRAMES = 30;
+    private static final int FRAME_INTERVAL_MS = 33;
+    // tiles that changed too little to be sent are off by camera noise, never more than this
+    private static final int MAX_LOSSLESS_ERROR = 8;
+    private static final int MAX_LOSSY_ERROR = 32;
+
+    @Test
+    public void pureJavaCodecs_runOnPlainJvm() {
+        for (int codecId : CODECS) {
+            for (int quality : QUALITIES) {
+                Result result = run(codecId, quality, 160, 90, 10);
+                assertTrue(result.bytesPerFrame > 0);
+                assertTrue(name(codecId, quality) + " max error " + result.maxError,
+                        result.maxError <= (codecId == FrameCodecs.CODEC_LOSSLESS ? MAX_LOSSLESS_ERROR : MAX_LOSSY_ERROR));
+                if (codecId == FrameCodecs.CODEC_LOSSLESS) break;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 640;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 360;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 150;
+
+        System.out.println("Frames of " + width + "x" + height + ", " + frames + " per run");
+        for (int codecId : CODECS) {
+            for (int quality : QUALITIES) {
+                Result result = run(codecId, quality, width, height, frames);
+                System.out.printf("%-11s encode %6.2f ms  decode %6.2f ms  %8d bytes/frame  max error %d%n",
+                        name(codecId, quality), result.encodeMs, result.decodeMs, result.bytesPerFrame, result.maxError);
+                // the lossless codec ignores the quality
+                if (codecId == FrameCodecs.CODEC_LOSSLESS) break;
+            }
+        }
+    }
+
+    private static class Result {
+        double encodeMs;
+        double decodeMs;
+        long bytesPerFrame;
+        int maxError;
+    }
+
+    private static Result run(int codecId, int quality, int width, int height, int frames) {
+        TileDeltaEncoder encoder = new TileDeltaEncoder();
+        TileDeltaDecoder decoder = new TileDeltaDecoder();
+        Random random = new Random(1);
+        int[] pixels = new int[width * height];
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        long totalBytes = 0;
+        int maxError = 0;
+        for (int i = -WARMUP_FRAMES; i < frames; i++) {
+            drawFrame(pixels, width, height, i + WARMUP_FRAMES, random);
+
+            long start = System.nanoTime();
+            byte[] data = encoder.encode(pixels, width, height, codecId, quality, (long) (i + WARMUP_FRAMES) * FRAME_INTERVAL_MS);
+            long encoded = System.nanoTime();
+            if (!decoder.decode(data, data.length)) {
+                throw new IllegalStateException("Frame " + i + " didn't decode");
+            }
+            long decoded = System.nanoTime();
+
+            if (i >= 0) {
+                encodeNanos += encoded - start;
+                decodeNanos += decoded - encoded;
+                totalBytes += data.length;
+                maxError = Math.max(maxError, maxError(pixels, decoder.getPixels(), width * height));
+            }
+        }
+
+        Result result = new Result();
+        result.encodeMs = encodeNanos / 1e6 / frames;
+        result.decodeMs = decodeNanos / 1e6 / frames;
+        result.bytesPerFrame = totalBytes / frames;
+        result.maxError = maxError;
+        return result;
+    }
+
+    private static String name(int codecId, int quality) {
+        return codecId == FrameCodecs.CODEC_LOSSLESS ? "lossless" : "deflate q" + quality;
+    }
+
+    private static void drawFrame(int[] pixels, int width, int height, int frame, Random random) {
+        int size = height / 4;
+        int squareX = (frame * 4) % Math.max(1, width - size);
+        int squareY = height / 2 - size / 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r, g, b;
+                if (x >= squareX && x < squareX + size && y >= squareY && y < squareY + size) {
+                    r = 220;
+                    g = 60;
+                    b = 40;
+                } else {
+                    r = x * 255 / width;
+                    g = y * 255 / height;
+                    b = 128;
+                }
+                int noise = random.nextInt(5) - 2;
+                pixels[y * width + x] = 0xFF000000 | clamp(r + noise) << 16 | clamp(g + noise) << 8 | clamp(b + noise);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    // the largest difference of any channel. tiles that didn't change enough to be sent count as well
+    private static int maxError(int[] expected, int[] actual, int count) {
+        int max = 0;
+        for (int i = 0; i < count; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int diff = Math.abs(((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF));
+                if (diff > max) max = diff;
+            }
+        }
+        return max;
+    }
+}
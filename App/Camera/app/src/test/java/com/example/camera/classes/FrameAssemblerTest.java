@@ -0,0 +1,136 @@
+package com.example.camera.classes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameAssemblerTest {
+    private static final int FRAGMENT_SIZE = 100;
+    private static final int SENDER_ID = 7;
+
+    @Test
+    public void cleanLink_reportsNoLoss() {
+        Packetizer packetizer = new Packetizer(WireFormat.VERSION_COMPACT, WireFormat.STREAM_VIDEO, FRAGMENT_SIZE, 8);
+        FrameAssembler assembler = new FrameAssembler("peer");
+        byte[] frame = frameOf(FRAGMENT_SIZE * 10 - 30);
+        packetizer.packetize(new PublishedFrame(1, frame), 0, SENDER_ID, 0, false);
+
+        CompleteData complete = null;
+        for (int i = 0; i < packetizer.getPacketCount(); i++) {
+            complete = assembler.insert(parse(packetizer.getPacket(i)));
+        }
+
+        assertFrame(frame, complete);
+        assertEquals(0f, reportedLoss(assembler), 0.01f);
+    }
+
+    @Test
+    public void lossRepairedByNacks_isStillReported() {
+        Packetizer packetizer = new Packetizer(WireFormat.VERSION_COMPACT, WireFormat.STREAM_VIDEO, FRAGMENT_SIZE, 8);
+        FrameAssembler assembler = new FrameAssembler("peer");
+        byte[] frame = frameOf(FRAGMENT_SIZE * 10);
+        packetizer.packetize(new PublishedFrame(1, frame), 0, SENDER_ID, 0, true);
+
+        // every other fragment is lost on the way
+        for (int i = 0; i < packetizer.getPacketCount(); i += 2) {
+            assertNull(assembler.insert(parse(packetizer.getPacket(i))));
+        }
+
+        ByteBuffer nack = ByteBuffer.allocate(WireFormat.MAX_NACK_SIZE);
+        assertTrue(assembler.putNack(0, nack, System.currentTimeMillis(), 0));
+        nack.flip();
+        long frameId = WireFormat.getVarLong(nack);
+        long ranges = WireFormat.getVarLong(nack);
+        assertEquals(1, frameId);
+        assertEquals(5, ranges);
+
+        CompleteData complete = null;
+        ByteBuffer retransmit = ByteBuffer.allocate(FRAGMENT_SIZE + WireFormat.MAX_COMPACT_HEADER_SIZE);
+        for (int range = 0; range < ranges; range++) {
+            long start = WireFormat.getVarLong(nack);
+            long length = WireFormat.getVarLong(nack);
+            for (long index = start; index < start + length; index++) {
+                assertTrue(packetizer.putRetransmit(frameId, (int) index, 0, retransmit));
+                DataPacket packet = parse(retransmit);
+                assertTrue(packet.isRetransmit());
+                complete = assembler.insert(packet);
+            }
+        }
+
+        // the frame is whole, but half of it only made it the second time
+        assertFrame(frame, complete);
+        assertEquals(0.5f, reportedLoss(assembler), 0.01f);
+    }
+
+    @Test
+    public void outOfOrderFragments_areReassembled() {
+        Packetizer packetizer = new Packetizer(WireFormat.VERSION_COMPACT, WireFormat.STREAM_VIDEO, FRAGMENT_SIZE, 8);
+        FrameAssembler assembler = new FrameAssembler("peer");
+        byte[] frame = frameOf(FRAGMENT_SIZE * 6 + 17);
+        packetizer.packetize(new PublishedFrame(1, frame), 0, SENDER_ID, 0, false);
+
+        int[] order = {6, 2, 0, 5, 3, 1, 4};
+        assertEquals(order.length, packetizer.getPacketCount());
+        CompleteData complete = null;
+        for (int i = 0; i < order.length; i++) {
+            complete = assembler.insert(parse(packetizer.getPacket(order[i])));
+            if (i < order.length - 1) {
+                assertNull(complete);
+            }
+        }
+
+        assertFrame(frame, complete);
+    }
+
+    @Test
+    public void oneLostFragmentPerParityGroup_isRecovered() {
+        Packetizer packetizer = new Packetizer(WireFormat.VERSION_COMPACT, WireFormat.STREAM_VIDEO, FRAGMENT_SIZE, 8);
+        packetizer.setParityGroupSize(4);
+        FrameAssembler assembler = new FrameAssembler("peer");
+        // ten fragments, the last one short, in three parity groups: 0 3 6 9, 1 4 7 and 2 5 8
+        byte[] frame = frameOf(FRAGMENT_SIZE * 9 + 50);
+        packetizer.packetize(new PublishedFrame(1, frame), 0, SENDER_ID, 0, false);
+        assertEquals(10 + 3, packetizer.getPacketCount());
+
+        CompleteData complete = null;
+        for (int i = 0; i < packetizer.getPacketCount(); i++) {
+            // one from every group, the short last fragment among them
+            if (i == 9 || i == 4 || i == 2) continue;
+            complete = assembler.insert(parse(packetizer.getPacket(i)));
+        }
+
+        assertFrame(frame, complete);
+    }
+
+    static DataPacket parse(ByteBuffer packet) {
+        DataPacket parsed = new DataPacket(packet.remaining());
+        parsed.getBuffer().put(packet.duplicate());
+        parsed.getBuffer().flip();
+        assertTrue(parsed.readHeader());
+        return parsed;
+    }
+
+    static byte[] frameOf(int length) {
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++) {
+            frame[i] = (byte) (i * 31 + 7);
+        }
+        return frame;
+    }
+
+    static void assertFrame(byte[] expected, CompleteData complete) {
+        assertNotNull(complete);
+        assertEquals(expected.length, complete.getLength());
+        assertArrayEquals(expected, Arrays.copyOf(complete.getPayload(), complete.getLength()));
+    }
+
+    private static float reportedLoss(FrameAssembler assembler) {
+        ByteBuffer report = ByteBuffer.allocate(32);
+        assembler.getStatistics().putReport(report, System.currentTimeMillis());
+        report.flip();
+        return ReceiveStatistics.readLoss(report);
+    }
+}
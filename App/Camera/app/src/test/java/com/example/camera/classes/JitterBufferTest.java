@@ -0,0 +1,83 @@
+package com.example.camera.classes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JitterBufferTest {
+    private static final long ARRIVED_AT = 100_000;
+
+    @Test
+    public void frames_playInSequenceOrder() {
+        JitterBuffer buffer = new JitterBuffer();
+        buffer.offer(frame(3, 0), ARRIVED_AT);
+        buffer.offer(frame(1, 0), ARRIVED_AT);
+        buffer.offer(frame(2, 0), ARRIVED_AT);
+
+        long now = buffer.getNextPlayoutAt();
+        assertEquals(1, buffer.poll(now).getFrameId());
+        assertEquals(2, buffer.poll(now).getFrameId());
+        assertEquals(3, buffer.poll(now).getFrameId());
+        assertNull(buffer.poll(now));
+        assertEquals(Long.MAX_VALUE, buffer.getNextPlayoutAt());
+    }
+
+    @Test
+    public void jitter_delaysPlayout() {
+        JitterBuffer buffer = new JitterBuffer();
+        // every other frame arrives 20 ms late
+        for (int i = 1; i <= 20; i++) {
+            buffer.offer(frame(i, i * 40), ARRIVED_AT + i * 40 + (i % 2) * 20);
+            assertEquals(i, buffer.poll(buffer.getNextPlayoutAt()).getFrameId());
+        }
+
+        // one on time is held back by the delay, so a late one after it still has room
+        long arrivedAt = ARRIVED_AT + 21 * 40;
+        buffer.offer(frame(21, 21 * 40), arrivedAt);
+        int delay = buffer.getTargetDelayMs();
+        assertTrue(delay > 0);
+        assertEquals(arrivedAt + delay, buffer.getNextPlayoutAt());
+        assertNull(buffer.poll(arrivedAt));
+        assertEquals(21, buffer.poll(arrivedAt + delay).getFrameId());
+    }
+
+    @Test
+    public void frameOlderThanOnePlayed_isDropped() {
+        JitterBuffer buffer = new JitterBuffer();
+        buffer.offer(frame(5, 0), ARRIVED_AT);
+        assertEquals(5, buffer.poll(buffer.getNextPlayoutAt()).getFrameId());
+
+        buffer.offer(frame(4, 0), ARRIVED_AT);
+        assertEquals(1, buffer.getDroppedFrames());
+        assertNull(buffer.poll(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void lateFrame_isDroppedAndAsksForAKeyframe() {
+        JitterBuffer buffer = new JitterBuffer();
+        buffer.offer(frame(1, 0), ARRIVED_AT);
+        buffer.offer(frame(2, 0), ARRIVED_AT);
+
+        // the loop only got to it well past its playout time
+        assertNull(buffer.poll(buffer.getNextPlayoutAt() + 1000));
+        assertEquals(2, buffer.getDroppedFrames());
+        assertEquals(2, buffer.pollLateFrameId());
+        assertEquals(-1, buffer.pollLateFrameId());
+    }
+
+    @Test
+    public void latePlainFrame_isDroppedWithoutAKeyframe() {
+        JitterBuffer buffer = new JitterBuffer();
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, 0, 0};
+        buffer.offer(new CompleteData("peer", 1, 0, jpeg, jpeg.length, null), ARRIVED_AT);
+
+        assertNull(buffer.poll(buffer.getNextPlayoutAt() + 1000));
+        assertEquals(1, buffer.getDroppedFrames());
+        assertEquals(-1, buffer.pollLateFrameId());
+    }
+
+    private static CompleteData frame(long frameId, long timestamp) {
+        byte[] delta = {TileDeltaEncoder.TYPE_DELTA, 0, 0, 0};
+        return new CompleteData("peer", frameId, timestamp, delta, delta.length, null);
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.camera.classes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketRingTest {
+    @Test
+    public void capacity_isRoundedUpToAPowerOfTwo() {
+        assertEquals(4, new PacketRing(4, PacketRing.WaitStrategy.SPIN).getCapacity());
+        assertEquals(8, new PacketRing(5, PacketRing.WaitStrategy.SPIN).getCapacity());
+        assertEquals(16, new PacketRing(9, PacketRing.WaitStrategy.SPIN).getCapacity());
+    }
+
+    @Test
+    public void packets_comeOutInOrderAcrossWrapAround() {
+        PacketRing ring = new PacketRing(4, PacketRing.WaitStrategy.SPIN);
+        DataPacket[] packets = packets(3);
+
+        // three at a time through four slots, so every round starts somewhere else in the ring
+        for (int round = 0; round < 10; round++) {
+            for (DataPacket packet : packets) {
+                assertTrue(ring.offer(packet));
+            }
+            assertEquals(3, ring.size());
+            for (DataPacket packet : packets) {
+                assertSame(packet, ring.poll());
+            }
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void fullRing_dropsTheNewPacket() {
+        PacketRing ring = new PacketRing(4, PacketRing.WaitStrategy.SPIN);
+        DataPacket[] packets = packets(5);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(packets[i]));
+        }
+        assertFalse(ring.offer(packets[4]));
+        assertEquals(1, ring.getDroppedPackets());
+        assertEquals(4, ring.size());
+
+        // the packets already in are the ones kept
+        for (int i = 0; i < 4; i++) {
+            assertSame(packets[i], ring.poll());
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void take_waitsForTheProducer() throws Exception {
+        PacketRing ring = new PacketRing(4, PacketRing.WaitStrategy.PARK);
+        DataPacket packet = new DataPacket(1);
+
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ring.offer(packet);
+        });
+        producer.start();
+
+        assertSame(packet, ring.take());
+        producer.join();
+    }
+
+    private static DataPacket[] packets(int count) {
+        DataPacket[] packets = new DataPacket[count];
+        for (int i = 0; i < count; i++) {
+            packets[i] = new DataPacket(1);
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.camera.classes;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TileDeltaCodecTest {
+    // not a whole number of tiles, so the edge tiles are cut
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+
+    @Test
+    public void losslessDeflate_roundTrips() {
+        DeflateFrameCodec codec = new DeflateFrameCodec(FrameCodecs.CODEC_LOSSLESS, true);
+        int[] pixels = pattern(WIDTH, HEIGHT, 3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(pixels, 0, WIDTH, WIDTH, HEIGHT, 100, out);
+        byte[] encoded = out.toByteArray();
+
+        int[] decoded = new int[WIDTH * HEIGHT];
+        assertTrue(codec.decode(encoded, 0, encoded.length, decoded, 0, WIDTH, WIDTH, HEIGHT));
+        assertArrayEquals(pixels, decoded);
+    }
+
+    @Test
+    public void losslessDeflate_roundTripsARegionOfALargerFrame() {
+        DeflateFrameCodec codec = new DeflateFrameCodec(FrameCodecs.CODEC_LOSSLESS, true);
+        int[] pixels = pattern(WIDTH, HEIGHT, 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // a 32x20 block starting at 10, 7, read with the frame's stride
+        codec.encode(pixels, 7 * WIDTH + 10, WIDTH, 32, 20, 100, out);
+        byte[] encoded = out.toByteArray();
+
+        int[] decoded = new int[WIDTH * HEIGHT];
+        assertTrue(codec.decode(encoded, 0, encoded.length, decoded, 7 * WIDTH + 10, WIDTH, 32, 20));
+        for (int y = 7; y < 27; y++) {
+            for (int x = 10; x < 42; x++) {
+                assertEquals(pixels[y * WIDTH + x], decoded[y * WIDTH + x]);
+            }
+        }
+        assertEquals(0, decoded[0]);
+    }
+
+    @Test
+    public void tileDeltas_roundTripLosslessly() {
+        TileDeltaEncoder encoder = new TileDeltaEncoder();
+        TileDeltaDecoder decoder = new TileDeltaDecoder();
+
+        for (int frame = 0; frame < 5; frame++) {
+            int[] pixels = pattern(WIDTH, HEIGHT, 0);
+            // a square that moves, so only a few tiles change from frame to frame
+            fill(pixels, 10 + frame * 12, 20, 16, 0xFF20C040);
+            byte[] encoded = encoder.encode(pixels, WIDTH, HEIGHT, FrameCodecs.CODEC_LOSSLESS, 100, frame * 33L);
+            assertEquals(frame == 0, TileDeltaDecoder.isKeyframe(encoded, encoded.length));
+
+            assertTrue(decoder.decode(encoded, encoded.length));
+            assertEquals(WIDTH, decoder.getWidth());
+            assertEquals(HEIGHT, decoder.getHeight());
+            assertArrayEquals(pixels, Arrays.copyOf(decoder.getPixels(), WIDTH * HEIGHT));
+        }
+    }
+
+    @Test
+    public void deltaAfterAMissingOne_isRefusedUntilAKeyframe() {
+        TileDeltaEncoder encoder = new TileDeltaEncoder();
+        TileDeltaDecoder decoder = new TileDeltaDecoder();
+        int[] pixels = pattern(WIDTH, HEIGHT, 0);
+
+        byte[] keyframe = encoder.encode(pixels, WIDTH, HEIGHT, FrameCodecs.CODEC_LOSSLESS, 100, 0);
+        assertTrue(decoder.decode(keyframe, keyframe.length));
+
+        fill(pixels, 0, 0, 16, 0xFF0000FF);
+        encoder.encode(pixels, WIDTH, HEIGHT, FrameCodecs.CODEC_LOSSLESS, 100, 33);
+        fill(pixels, 50, 30, 16, 0xFFFF0000);
+        byte[] skippedTo = encoder.encode(pixels, WIDTH, HEIGHT, FrameCodecs.CODEC_LOSSLESS, 100, 66);
+        assertFalse(decoder.decode(skippedTo, skippedTo.length));
+
+        encoder.requestKeyframe();
+        byte[] next = encoder.encode(pixels, WIDTH, HEIGHT, FrameCodecs.CODEC_LOSSLESS, 100, 99);
+        assertTrue(decoder.decode(next, next.length));
+        assertArrayEquals(pixels, Arrays.copyOf(decoder.getPixels(), WIDTH * HEIGHT));
+    }
+
+    // smooth gradients with some noise, opaque like camera frames
+    private static int[] pattern(int width, int height, int seed) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = (x * 7 + y * 13 + seed * 31) % 5;
+                pixels[y * width + x] = 0xFF000000 | (x * 2 + noise) << 16 | (y * 3 + noise) << 8 | (x + y + seed) & 0xFF;
+            }
+        }
+        return pixels;
+    }
+
+    private static void fill(int[] pixels, int left, int top, int size, int color) {
+        for (int y = top; y < Math.min(HEIGHT, top + size); y++) {
+            for (int x = left; x < Math.min(WIDTH, left + size); x++) {
+                pixels[y * WIDTH + x] = color;
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.camera.classes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class WireFormatTest {
+    private static final int SENDER_ID = 300;
+    private static final int FRAGMENT_SIZE = 1000;
+
+    @Test
+    public void varLong_roundTrips() {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (long value : values) {
+            buffer.clear();
+            WireFormat.putVarLong(buffer, value);
+            buffer.flip();
+            assertEquals(value, WireFormat.getVarLong(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+        assertEquals(-5, WireFormat.unZigZag(WireFormat.zigZag(-5)));
+    }
+
+    @Test
+    public void compactHeader_roundTrips() {
+        ByteBuffer packet = ByteBuffer.allocate(FRAGMENT_SIZE + WireFormat.MAX_COMPACT_HEADER_SIZE);
+        WireFormat.putCompactHeader(packet, 2, false, SENDER_ID, 123456, 789, 3, 7, FRAGMENT_SIZE);
+        packet.put(new byte[] {1, 2, 3});
+        packet.flip();
+
+        DataPacket parsed = FrameAssemblerTest.parse(packet);
+        assertEquals(WireFormat.VERSION_COMPACT, parsed.getVersion());
+        assertEquals(2, parsed.getStreamId());
+        assertEquals(SENDER_ID, parsed.getSenderId());
+        assertEquals(123456, parsed.getFrameId());
+        assertEquals(789, parsed.getTimestamp());
+        assertEquals(3, parsed.getSequenceNumber());
+        assertEquals(7, parsed.getTotalPackets());
+        assertEquals(FRAGMENT_SIZE, parsed.getFragmentSize());
+        assertFalse(parsed.isControl());
+        assertFalse(parsed.isParity());
+        assertFalse(parsed.isRetransmit());
+        assertEquals(3, parsed.getPayloadLength());
+    }
+
+    @Test
+    public void parityHeader_roundTrips() {
+        ByteBuffer packet = ByteBuffer.allocate(FRAGMENT_SIZE + WireFormat.MAX_COMPACT_HEADER_SIZE);
+        WireFormat.putParityHeader(packet, 0, false, SENDER_ID, 9, 10, 8, 8, FRAGMENT_SIZE, 2, 7500);
+        packet.put(new byte[FRAGMENT_SIZE]);
+        packet.flip();
+
+        DataPacket parsed = FrameAssemblerTest.parse(packet);
+        assertTrue(parsed.isParity());
+        assertEquals(8, parsed.getSequenceNumber());
+        assertEquals(2, parsed.getParityCount());
+        assertEquals(7500, parsed.getFrameLength());
+    }
+
+    @Test
+    public void legacyHeader_roundTrips() {
+        ByteBuffer packet = ByteBuffer.allocate(WireFormat.LEGACY_HEADER_SIZE + 4);
+        WireFormat.putLegacyHeader(packet, WireFormat.packUsername("alice"), 1234, 1, 2);
+        packet.put(new byte[] {9, 9, 9, 9});
+        packet.flip();
+
+        DataPacket parsed = FrameAssemblerTest.parse(packet);
+        assertEquals(WireFormat.VERSION_LEGACY, parsed.getVersion());
+        assertEquals(WireFormat.packUsername("alice"), parsed.getUsernameKey());
+        assertEquals(1234, parsed.getTimestamp());
+        assertEquals(1, parsed.getSequenceNumber());
+        assertEquals(2, parsed.getTotalPackets());
+        assertEquals(4, parsed.getPayloadLength());
+    }
+
+    @Test
+    public void hello_roundTrips() {
+        ByteBuffer packet = ByteBuffer.allocate(WireFormat.HELLO_SIZE);
+        WireFormat.putHello(packet, true, SENDER_ID, WireFormat.packUsername("bob"),
+                WireFormat.HELLO_REPLY_REQUESTED, FrameCodecs.SUPPORTED);
+        WireFormat.putChecksum(packet, 0);
+        packet.flip();
+
+        DataPacket parsed = FrameAssemblerTest.parse(packet);
+        assertTrue(parsed.isControl());
+        assertEquals(WireFormat.CONTROL_HELLO, parsed.getControlType());
+        assertEquals(WireFormat.CURRENT_VERSION, parsed.getHelloVersion());
+        assertEquals(WireFormat.HELLO_REPLY_REQUESTED, parsed.getHelloFlags());
+        assertEquals(WireFormat.packUsername("bob"), parsed.getUsernameKey());
+        assertEquals(FrameCodecs.SUPPORTED, parsed.getHelloCodecs());
+    }
+
+    @Test
+    public void checksum_catchesACorruptByte() {
+        ByteBuffer packet = checksummedPacket();
+        assertTrue(read(packet));
+
+        packet.put(packet.limit() - 6, (byte) (packet.get(packet.limit() - 6) ^ 0x10));
+        assertFalse(read(packet));
+    }
+
+    @Test
+    public void markRetransmit_keepsTheChecksumValid() {
+        ByteBuffer packet = checksummedPacket();
+        WireFormat.markRetransmit(packet);
+
+        DataPacket parsed = FrameAssemblerTest.parse(packet);
+        assertTrue(parsed.isRetransmit());
+        assertEquals(5, parsed.getPayloadLength());
+    }
+
+    @Test
+    public void truncatedHeader_isRejected() {
+        ByteBuffer packet = ByteBuffer.allocate(WireFormat.MAX_COMPACT_HEADER_SIZE);
+        WireFormat.putCompactHeader(packet, 0, false, SENDER_ID, 1000, 2000, 1, 2, FRAGMENT_SIZE);
+        int headerSize = packet.position();
+
+        for (int length = 0; length < headerSize; length++) {
+            ByteBuffer truncated = packet.duplicate();
+            truncated.position(0);
+            truncated.limit(length);
+            assertFalse("cut after " + length + " bytes", read(truncated));
+        }
+
+        ByteBuffer legacy = ByteBuffer.allocate(WireFormat.LEGACY_HEADER_SIZE - 1);
+        legacy.putLong(WireFormat.packUsername("alice"));
+        legacy.position(legacy.limit());
+        legacy.flip();
+        assertFalse(read(legacy));
+    }
+
+    @Test
+    public void malformedHeader_isRejected() {
+        // a version from the future
+        ByteBuffer packet = compactPacket(SENDER_ID, 0, 1, FRAGMENT_SIZE, 10);
+        packet.put(0, (byte) (WireFormat.VERSION_MARKER | WireFormat.CURRENT_VERSION + 1));
+        assertFalse(read(packet));
+
+        // sender ids start at 1
+        assertFalse(read(compactPacket(0, 0, 1, FRAGMENT_SIZE, 10)));
+        // the index is past the last fragment
+        assertFalse(read(compactPacket(SENDER_ID, 1, 1, FRAGMENT_SIZE, 10)));
+        // more payload than a fragment holds
+        assertFalse(read(compactPacket(SENDER_ID, 0, 1, 8, 10)));
+
+        // a sender id varint that never ends
+        ByteBuffer endless = ByteBuffer.allocate(16);
+        endless.put((byte) (WireFormat.VERSION_MARKER | WireFormat.CURRENT_VERSION)).put((byte) 0);
+        while (endless.hasRemaining()) {
+            endless.put((byte) 0x80);
+        }
+        endless.flip();
+        assertFalse(read(endless));
+
+        // more parity fragments than data fragments
+        ByteBuffer parity = ByteBuffer.allocate(64);
+        WireFormat.putParityHeader(parity, 0, false, SENDER_ID, 1, 1, 2, 2, FRAGMENT_SIZE, 3, 100);
+        parity.flip();
+        assertFalse(read(parity));
+    }
+
+    private static ByteBuffer checksummedPacket() {
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        WireFormat.putCompactHeader(packet, 0, true, SENDER_ID, 42, 43, 0, 1, FRAGMENT_SIZE);
+        packet.put(new byte[] {5, 4, 3, 2, 1});
+        WireFormat.putChecksum(packet, 0);
+        packet.flip();
+        return packet;
+    }
+
+    private static ByteBuffer compactPacket(int senderId, int index, int total, int fragmentSize, int payloadLength) {
+        ByteBuffer packet = ByteBuffer.allocate(WireFormat.MAX_COMPACT_HEADER_SIZE + payloadLength);
+        WireFormat.putCompactHeader(packet, 0, false, senderId, 1, 1, index, total, fragmentSize);
+        packet.put(new byte[payloadLength]);
+        packet.flip();
+        return packet;
+    }
+
+    private static boolean read(ByteBuffer packet) {
+        DataPacket parsed = new DataPacket(Math.max(1, packet.remaining()));
+        parsed.getBuffer().put(packet.duplicate());
+        parsed.getBuffer().flip();
+        return parsed.readHeader();
+    }
+}
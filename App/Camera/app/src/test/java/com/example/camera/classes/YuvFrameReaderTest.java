@@ -0,0 +1,109 @@
+package com.example.camera.classes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class YuvFrameReaderTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+    private static final byte PADDING = (byte) 0xEE;
+
+    @Test
+    public void paddedRows_areSkipped() {
+        int rowStride = WIDTH + 10;
+        ByteBuffer y = plane(WIDTH, HEIGHT, rowStride, 1, YuvFrameReaderTest::luma);
+        ByteBuffer u = plane(WIDTH / 2, HEIGHT / 2, rowStride / 2, 1, (x, row) -> 128);
+        ByteBuffer v = plane(WIDTH / 2, HEIGHT / 2, rowStride / 2, 1, (x, row) -> 128);
+
+        YuvFrameReader reader = new YuvFrameReader();
+        reader.read(WIDTH, HEIGHT, y, rowStride, 1, u, v, rowStride / 2, 1);
+
+        assertGray(reader);
+    }
+
+    @Test
+    public void interleavedChroma_isReadWithItsPixelStride() {
+        // semi planar like most cameras give it: u and v share one buffer, one byte apart
+        int rowStride = WIDTH + 2;
+        int chromaRowStride = WIDTH + 4;
+        ByteBuffer y = plane(WIDTH, HEIGHT, rowStride, 1, YuvFrameReaderTest::luma);
+        ByteBuffer chroma = plane(WIDTH, HEIGHT / 2, chromaRowStride, 1,
+                (x, row) -> x % 2 == 0 ? 128 : chromaV(x / 2, row));
+        ByteBuffer u = chroma.duplicate();
+        ByteBuffer v = chroma.duplicate();
+        v.position(1);
+
+        YuvFrameReader reader = new YuvFrameReader();
+        reader.read(WIDTH, HEIGHT, y, rowStride, 1, u.slice(), v.slice(), chromaRowStride, 2);
+
+        int[] pixels = reader.convert(0, 1f);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = pixels[row * WIDTH + x];
+                int red = clamp(luma(x, row) + ((1436 * (chromaV(x / 2, row / 2) - 128)) >> 10));
+                assertEquals("red at " + x + ", " + row, red, pixel >> 16 & 0xFF);
+                // u stays neutral, so blue is only the luma
+                assertEquals("blue at " + x + ", " + row, luma(x, row), pixel & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void pixelStrideOfTwo_onLuma_isRead() {
+        int rowStride = WIDTH * 2 + 3;
+        ByteBuffer y = plane(WIDTH * 2, HEIGHT, rowStride, 1, (x, row) -> x % 2 == 0 ? luma(x / 2, row) : PADDING);
+        ByteBuffer u = plane(WIDTH / 2, HEIGHT / 2, WIDTH / 2, 1, (x, row) -> 128);
+        ByteBuffer v = plane(WIDTH / 2, HEIGHT / 2, WIDTH / 2, 1, (x, row) -> 128);
+
+        YuvFrameReader reader = new YuvFrameReader();
+        reader.read(WIDTH, HEIGHT, y, rowStride, 2, u, v, WIDTH / 2, 1);
+
+        assertGray(reader);
+    }
+
+    private interface Sample {
+        int at(int x, int row);
+    }
+
+    // the last row ends right after its last byte, like camera buffers often do
+    private static ByteBuffer plane(int width, int height, int rowStride, int pixelStride, Sample sample) {
+        ByteBuffer plane = ByteBuffer.allocateDirect((height - 1) * rowStride + (width - 1) * pixelStride + 1);
+        while (plane.hasRemaining()) {
+            plane.put(PADDING);
+        }
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                plane.put(row * rowStride + x * pixelStride, (byte) sample.at(x, row));
+            }
+        }
+        plane.clear();
+        return plane;
+    }
+
+    private static void assertGray(YuvFrameReader reader) {
+        int[] pixels = reader.convert(0, 1f);
+        assertEquals(WIDTH, reader.getWidth(0));
+        assertEquals(HEIGHT, reader.getHeight(0));
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int gray = luma(x, row);
+                assertEquals("at " + x + ", " + row, 0xFF000000 | gray << 16 | gray << 8 | gray, pixels[row * WIDTH + x]);
+            }
+        }
+    }
+
+    private static int luma(int x, int row) {
+        return 20 + x * 30 + row * 5;
+    }
+
+    private static int chromaV(int x, int row) {
+        return 100 + x * 20 + row * 10;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.evermeet.sfu;
+
+import java.net.InetSocketAddress;
+
+public class Participant {
+    // matches no stream, for a sender the participant isn't showing
+    public static final int NO_LAYER = -1;
+
+    private final int _senderId;
+    private InetSocketAddress _address;
+    private SfuRoom _room;
+    private long _lastSeenAt;
+    // the simulcast layer this participant wants from each sender, indexed by sender id
+    private final byte[] _layers = new byte[SfuWire.MAX_SENDER_ID + 1];
+
+    public Participant(int senderId, InetSocketAddress address) {
+        this._senderId = senderId;
+        this._address = address;
+    }
+
+    public int getSenderId() {
+        return _senderId;
+    }
+
+    // where the client receives, taken from its joins since media may come from another port
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    public void setAddress(InetSocketAddress address) {
+        this._address = address;
+    }
+
+    public SfuRoom getRoom() {
+        return _room;
+    }
+
+    public void setRoom(SfuRoom room) {
+        this._room = room;
+    }
+
+    public int getLayer(int senderId) {
+        return _layers[senderId];
+    }
+
+    public void setLayer(int senderId, int layer) {
+        _layers[senderId] = (byte) layer;
+    }
+
+    public long getLastSeenAt() {
+        return _lastSeenAt;
+    }
+
+    public void setLastSeenAt(long lastSeenAt) {
+        this._lastSeenAt = lastSeenAt;
+    }
+}
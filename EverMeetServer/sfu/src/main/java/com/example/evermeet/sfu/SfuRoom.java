@@ -0,0 +1,45 @@
+package com.example.evermeet.sfu;
+
+import java.util.Arrays;
+
+public class SfuRoom {
+    private final String _id;
+    // replaced on every join and leave, so forwarding walks a plain array
+    private Participant[] _members = new Participant[0];
+
+    public SfuRoom(String id) {
+        this._id = id;
+    }
+
+    public String getId() {
+        return _id;
+    }
+
+    public Participant[] getMembers() {
+        return _members;
+    }
+
+    public boolean isEmpty() {
+        return _members.length == 0;
+    }
+
+    public void add(Participant participant) {
+        for (Participant member : _members) {
+            if (member == participant) return;
+        }
+        _members = Arrays.copyOf(_members, _members.length + 1);
+        _members[_members.length - 1] = participant;
+    }
+
+    public void remove(Participant participant) {
+        for (int i = 0; i < _members.length; i++) {
+            if (_members[i] == participant) {
+                Participant[] members = new Participant[_members.length - 1];
+                System.arraycopy(_members, 0, members, 0, i);
+                System.arraycopy(_members, i + 1, members, i, members.length - i);
+                _members = members;
+                return;
+            }
+        }
+    }
+}
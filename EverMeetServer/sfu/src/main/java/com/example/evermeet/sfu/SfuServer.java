@@ -0,0 +1,271 @@
+package com.example.evermeet.sfu;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// every client uploads its stream once and the server copies each packet to the rest of the room.
+// packets are routed on the sender id in their header and forwarded untouched out of one receive buffer,
+// so nothing is decoded and nothing is allocated per packet
+public class SfuServer {
+    private static final int DEFAULT_PORT = 12345;
+    private static final int MAX_PACKET_SIZE = 65536;
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int EXPIRE_CHECK_MS = 1000;
+    // clients re-join every second, a participant this quiet has left without saying so
+    private static final int PARTICIPANT_TIMEOUT_MS = 10000;
+    private static final int JOIN_ACK_SIZE = 16;
+
+    private final DatagramChannel _channel;
+    private final Selector _selector;
+    private final ByteBuffer _packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private final ByteBuffer _reply = ByteBuffer.allocateDirect(JOIN_ACK_SIZE);
+    private final byte[] _roomId = new byte[SfuWire.MAX_ROOM_ID_SIZE];
+    // indexed by sender id, ids are unique across the whole server
+    private final Participant[] _participants = new Participant[SfuWire.MAX_SENDER_ID + 1];
+    private final Map<String, SfuRoom> _rooms = new HashMap<>();
+    private long _forwardedPackets;
+    private long _droppedPackets;
+    private long _lastExpireAt;
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        new SfuServer(port).run();
+    }
+
+    public SfuServer(int port) throws IOException {
+        _channel = DatagramChannel.open();
+        _channel.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        _channel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+        _channel.bind(new InetSocketAddress(port));
+        _channel.configureBlocking(false);
+
+        _selector = Selector.open();
+        _channel.register(_selector, SelectionKey.OP_READ);
+        System.out.println("SFU is listening on port " + port + "...");
+    }
+
+    public void run() throws IOException {
+        while (true) {
+            _selector.select(EXPIRE_CHECK_MS);
+            _selector.selectedKeys().clear();
+
+            long now = System.currentTimeMillis();
+            SocketAddress from;
+            while ((from = _channel.receive(_packet)) != null) {
+                _packet.flip();
+                handlePacket((InetSocketAddress) from, now);
+                _packet.clear();
+            }
+
+            if (now - _lastExpireAt >= EXPIRE_CHECK_MS) {
+                _lastExpireAt = now;
+                expireParticipants(now);
+            }
+        }
+    }
+
+    public long getForwardedPackets() {
+        return _forwardedPackets;
+    }
+
+    public long getDroppedPackets() {
+        return _droppedPackets;
+    }
+
+    private void handlePacket(InetSocketAddress from, long now) {
+        try {
+            int first = _packet.get() & 0xFF;
+            // legacy packets have no sender id, so they can't be routed
+            if ((first & ~SfuWire.VERSION_MASK) != SfuWire.VERSION_MARKER
+                    || (first & SfuWire.VERSION_MASK) < SfuWire.VERSION_COMPACT) {
+                _droppedPackets++;
+                return;
+            }
+
+            int flags = _packet.get() & 0xFF;
+            long senderId = SfuWire.getVarLong(_packet);
+            if (senderId <= 0 || senderId >= SfuWire.SFU_SENDER_ID) {
+                _droppedPackets++;
+                return;
+            }
+
+            if ((flags & SfuWire.FLAG_CONTROL) == 0) {
+                int layer = (flags >>> SfuWire.STREAM_SHIFT) & SfuWire.STREAM_MASK;
+                forwardLayer(verifiedSender((int) senderId, from, now), layer);
+                return;
+            }
+
+            int controlType = _packet.get() & 0xFF;
+            // hellos are how peers learn each other's ids, so they go to the whole room
+            if (controlType == SfuWire.CONTROL_HELLO) {
+                forwardToRoom(verifiedSender((int) senderId, from, now));
+                return;
+            }
+
+            // every other control packet names the one participant it is meant for
+            long targetId = SfuWire.getVarLong(_packet);
+            if (targetId == SfuWire.SFU_SENDER_ID) {
+                if (controlType == SfuWire.CONTROL_JOIN) {
+                    handleJoin((int) senderId, flags, from, now);
+                }
+                return;
+            }
+
+            Participant sender = verifiedSender((int) senderId, from, now);
+            Participant target = targetId > 0 && targetId < _participants.length ? _participants[(int) targetId] : null;
+            if (sender == null || target == null || target.getRoom() != sender.getRoom()) {
+                _droppedPackets++;
+                return;
+            }
+            // the sender uploads every layer someone subscribed to, the server remembers who wanted which
+            if (controlType == SfuWire.CONTROL_SUBSCRIBE) {
+                int end = (flags & SfuWire.FLAG_CHECKSUM) != 0 ? _packet.limit() - SfuWire.CHECKSUM_SIZE : _packet.limit();
+                if (_packet.position() < end) {
+                    int layer = _packet.get() & 0xFF;
+                    sender.setLayer((int) targetId, layer == SfuWire.SUBSCRIBE_PAUSED ? Participant.NO_LAYER : layer & SfuWire.STREAM_MASK);
+                }
+            }
+            forward(target);
+        } catch (RuntimeException e) {
+            // a truncated header
+            _droppedPackets++;
+        }
+    }
+
+    // the whole address is checked, clients send media out of the socket they join from. someone behind the same
+    // nat can't send as another participant by guessing its id
+    private Participant verifiedSender(int senderId, InetSocketAddress from, long now) {
+        Participant participant = _participants[senderId];
+        if (participant == null || !participant.getAddress().equals(from)) {
+            return null;
+        }
+        participant.setLastSeenAt(now);
+        return participant;
+    }
+
+    private void forwardToRoom(Participant sender) {
+        if (sender == null) {
+            _droppedPackets++;
+            return;
+        }
+
+        for (Participant member : sender.getRoom().getMembers()) {
+            if (member != sender) {
+                forward(member);
+            }
+        }
+    }
+
+    // media only goes to the members that subscribed to its layer, none for members not showing the sender
+    private void forwardLayer(Participant sender, int layer) {
+        if (sender == null) {
+            _droppedPackets++;
+            return;
+        }
+
+        int senderId = sender.getSenderId();
+        for (Participant member : sender.getRoom().getMembers()) {
+            if (member != sender && member.getLayer(senderId) == layer) {
+                forward(member);
+            }
+        }
+    }
+
+    // every copy goes out of the same buffer, only its position is rewound. a full send buffer sends nothing,
+    // which is a drop like a failed send
+    private void forward(Participant target) {
+        try {
+            _packet.position(0);
+            if (_channel.send(_packet, target.getAddress()) == 0) {
+                _droppedPackets++;
+                return;
+            }
+            _forwardedPackets++;
+        } catch (IOException e) {
+            _droppedPackets++;
+        }
+    }
+
+    // a join is also the client's keep alive, it refreshes the address replies are sent to
+    private void handleJoin(int senderId, int flags, InetSocketAddress from, long now) {
+        int end = (flags & SfuWire.FLAG_CHECKSUM) != 0 ? _packet.limit() - SfuWire.CHECKSUM_SIZE : _packet.limit();
+        long length = SfuWire.getVarLong(_packet);
+        if (length <= 0 || length > _roomId.length || _packet.position() + length > end) {
+            _droppedPackets++;
+            return;
+        }
+        _packet.get(_roomId, 0, (int) length);
+
+        Participant participant = _participants[senderId];
+        if (participant != null && !participant.getAddress().equals(from)
+                && now - participant.getLastSeenAt() < PARTICIPANT_TIMEOUT_MS) {
+            sendJoinAck(senderId, from, SfuWire.JOIN_ID_CONFLICT);
+            return;
+        }
+
+        if (participant == null) {
+            participant = new Participant(senderId, from);
+            _participants[senderId] = participant;
+            // whoever had this id before may have been subscribed to a smaller layer
+            for (Participant other : _participants) {
+                if (other != null) other.setLayer(senderId, 0);
+            }
+        }
+        participant.setAddress(from);
+        participant.setLastSeenAt(now);
+
+        String roomId = new String(_roomId, 0, (int) length, StandardCharsets.UTF_8);
+        if (participant.getRoom() == null || !participant.getRoom().getId().equals(roomId)) {
+            leaveRoom(participant);
+            SfuRoom room = _rooms.computeIfAbsent(roomId, SfuRoom::new);
+            room.add(participant);
+            participant.setRoom(room);
+            System.out.println("Sender " + senderId + " joined room " + roomId + " from " + from
+                    + ", " + room.getMembers().length + " in the room");
+        }
+
+        sendJoinAck(senderId, from, 0);
+    }
+
+    private void sendJoinAck(int targetId, InetSocketAddress to, int flags) {
+        _reply.clear();
+        SfuWire.putControlHeader(_reply, SfuWire.CONTROL_JOIN_ACK, targetId);
+        _reply.put((byte) flags);
+        _reply.flip();
+        try {
+            _channel.send(_reply, to);
+        } catch (IOException e) {
+            _droppedPackets++;
+        }
+    }
+
+    private void expireParticipants(long now) {
+        for (int i = 0; i < _participants.length; i++) {
+            Participant participant = _participants[i];
+            if (participant != null && now - participant.getLastSeenAt() >= PARTICIPANT_TIMEOUT_MS) {
+                leaveRoom(participant);
+                _participants[i] = null;
+                System.out.println("Sender " + i + " timed out");
+            }
+        }
+    }
+
+    private void leaveRoom(Participant participant) {
+        SfuRoom room = participant.getRoom();
+        if (room == null) return;
+
+        room.remove(participant);
+        participant.setRoom(null);
+        if (room.isEmpty()) {
+            _rooms.remove(room.getId());
+        }
+    }
+}
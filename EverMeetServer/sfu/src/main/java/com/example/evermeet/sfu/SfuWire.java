@@ -0,0 +1,59 @@
+package com.example.evermeet.sfu;
+
+import java.nio.ByteBuffer;
+
+// the parts of the app's compact wire format the server needs to route a packet, kept in sync with
+// com.example.camera.classes.WireFormat. nothing past the routing fields is ever parsed
+public class SfuWire {
+    public static final int VERSION_MARKER = 0xF8;
+    public static final int VERSION_MASK = 0x07;
+    public static final int VERSION_COMPACT = 2;
+
+    public static final int FLAG_CONTROL = 0x01;
+    public static final int STREAM_SHIFT = 1;
+    public static final int STREAM_MASK = 0x07;
+    public static final int FLAG_CHECKSUM = 0x80;
+
+    public static final int CONTROL_HELLO = 1;
+    public static final int CONTROL_JOIN = 8;
+    public static final int CONTROL_JOIN_ACK = 9;
+    public static final int CONTROL_SUBSCRIBE = 10;
+    public static final int JOIN_ID_CONFLICT = 0x01;
+    // in place of a layer, the receiver isn't showing the sender at all
+    public static final int SUBSCRIBE_PAUSED = 0xFF;
+
+    public static final int CHECKSUM_SIZE = 4;
+    public static final int MAX_SENDER_ID = 0x3FFF;
+    // clients never pick this id, control packets addressed to it are for the server itself
+    public static final int SFU_SENDER_ID = MAX_SENDER_ID;
+    public static final int MAX_ROOM_ID_SIZE = 64;
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // returns -1 for a varint longer than a long can hold
+    public static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    public static void putControlHeader(ByteBuffer buffer, int controlType, int targetId) {
+        buffer.put((byte) (VERSION_MARKER | VERSION_COMPACT));
+        buffer.put((byte) FLAG_CONTROL);
+        putVarLong(buffer, SFU_SENDER_ID);
+        buffer.put((byte) controlType);
+        putVarLong(buffer, targetId);
+    }
+}